@@ -0,0 +1,166 @@
+/**
+ * StartupPipeline.java
+ */
+package com.subway.ditu;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * 启动流程的各个阶段计时，时间都从onCreate开始算。非关键的初始化放到第一帧画出之后的空闲时间执行，
+ * 地图加载失败或者只能降级显示时立即执行，最迟在IDLE_TIMEOUT之后执行，不依赖地图画出来。
+ *
+ * <pre>
+ * probe       检查金字塔/原图，与View的创建并行
+ * inflate     创建并设置View
+ * decode      打开分块数据源、解码底图
+ * firstFrame  第一次画出地图
+ * idle        第一帧之后的非关键初始化
+ * </pre>
+ */
+public class StartupPipeline {
+    private static final String TAG = "StartupPipeline";
+    private static final boolean DEBUG = false;
+
+    public static final String STAGE_PROBE = "probe";
+    public static final String STAGE_INFLATE = "inflate";
+    public static final String STAGE_DECODE = "decode";
+    public static final String STAGE_IDLE = "idle";
+
+    // 一直没有第一帧时，空闲任务最多等待的时间
+    private static final long IDLE_TIMEOUT = 5000;
+
+    private final long mStartTime = SystemClock.uptimeMillis();
+
+    // 阶段开始的时间，阶段可能在后台线程开始和结束
+    private final HashMap<String, Long> mStageStart = new HashMap<String, Long>();
+
+    private long mFirstFrameTime = -1;
+    private final ArrayList<Runnable> mIdleTasks = new ArrayList<Runnable>();
+    // 空闲任务可以开始执行，只在主线程访问
+    private boolean mIdleReady = false;
+
+    private final Handler mHandler = new Handler();
+    private final Runnable mIdleTimeout = new Runnable() {
+
+        @Override
+        public void run() {
+            if (DEBUG) {
+                Log.d(TAG, "[[idleTimeout]] no first frame after " + getElapsed() + "ms");
+            }
+            startIdleTasks();
+        }
+    };
+
+    /**
+     * 在主线程创建，开始计算空闲任务的超时
+     */
+    public StartupPipeline() {
+        mHandler.postDelayed(mIdleTimeout, IDLE_TIMEOUT);
+    }
+
+    public synchronized void begin(String stage) {
+        mStageStart.put(stage, SystemClock.uptimeMillis());
+    }
+
+    /**
+     * @return 阶段耗时，没有调用过begin时返回-1
+     */
+    public synchronized long end(String stage) {
+        Long start = mStageStart.remove(stage);
+        if (start == null) {
+            return -1;
+        }
+
+        long now = SystemClock.uptimeMillis();
+        long cost = now - start;
+        if (DEBUG) {
+            Log.d(TAG, "[[" + stage + "]] cost = " + cost + "ms, end at " + (now - mStartTime) + "ms");
+        }
+        return cost;
+    }
+
+    /**
+     * 从onCreate开始经过的时间
+     */
+    public long getElapsed() {
+        return SystemClock.uptimeMillis() - mStartTime;
+    }
+
+    /**
+     * 第一帧的时间，还没画出时返回-1
+     */
+    public synchronized long getTimeToFirstFrame() {
+        return mFirstFrameTime;
+    }
+
+    /**
+     * 地图第一次画出来时调用，只在主线程调用。之后开始执行空闲任务。
+     */
+    public void onFirstFrame() {
+        synchronized (this) {
+            if (mFirstFrameTime >= 0) {
+                return;
+            }
+            mFirstFrameTime = getElapsed();
+        }
+        if (DEBUG) {
+            Log.d(TAG, "[[firstFrame]] time to first frame = " + mFirstFrameTime + "ms");
+        }
+        startIdleTasks();
+    }
+
+    /**
+     * 不再等第一帧，开始执行空闲任务。地图加载失败或者降级显示时调用，只在主线程调用。
+     */
+    public void startIdleTasks() {
+        mHandler.removeCallbacks(mIdleTimeout);
+        mIdleReady = true;
+        scheduleIdleTasks();
+    }
+
+    /**
+     * Activity销毁时调用，丢弃还没有执行的空闲任务
+     */
+    public void cancel() {
+        mHandler.removeCallbacks(mIdleTimeout);
+        mIdleTasks.clear();
+    }
+
+    /**
+     * 第一帧之后主线程空闲时执行，只在主线程调用
+     */
+    public void runWhenIdle(Runnable task) {
+        mIdleTasks.add(task);
+        if (mIdleReady) {
+            scheduleIdleTasks();
+        }
+    }
+
+    private void scheduleIdleTasks() {
+        if (mIdleTasks.isEmpty()) {
+            return;
+        }
+
+        final ArrayList<Runnable> tasks = new ArrayList<Runnable>(mIdleTasks);
+        mIdleTasks.clear();
+        Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+
+            @Override
+            public boolean queueIdle() {
+                begin(STAGE_IDLE);
+                for (Runnable task : tasks) {
+                    task.run();
+                }
+                end(STAGE_IDLE);
+                return false;
+            }
+        });
+    }
+}
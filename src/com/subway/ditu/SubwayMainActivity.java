@@ -6,18 +6,28 @@ import net.youmi.push.android.YoumiPush;
 import android.app.Activity;
 import android.app.ProgressDialog;
 import android.graphics.Bitmap;
-import android.os.AsyncTask;
+import android.graphics.Rect;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.Message;
-import android.text.TextUtils;
+import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.ViewGroup;
 import android.widget.Toast;
 
-import com.subway.ditu.utils.AssetsIOHelper;
+import com.subway.ditu.utils.CacheManifest;
+import com.subway.ditu.utils.MemoryGovernor;
+import com.subway.ditu.utils.image.ImageMetadataCache;
+import com.subway.ditu.utils.image.ImageSource;
 import com.subway.ditu.utils.image.ImageUtils;
+import com.subway.ditu.utils.image.PixelCache;
+import com.subway.ditu.utils.task.ScheduledTask;
+import com.subway.ditu.utils.task.TaskScheduler;
 import com.subway.ditu.view.TouchImageView;
+import com.subway.ditu.view.tile.PreviewImage;
+import com.subway.ditu.view.tile.PyramidTileSource;
+import com.subway.ditu.view.tile.RegionTileSource;
+import com.subway.ditu.view.tile.TileManager;
+import com.subway.ditu.view.tile.TilePyramid;
+import com.subway.ditu.view.tile.TileSource;
 
 public class SubwayMainActivity extends Activity {
 
@@ -28,85 +38,459 @@ public class SubwayMainActivity extends Activity {
 
     private ProgressDialog mProgressDialog;
 
+    private TilePyramid mTilePyramid;
+    private ImageSource mMapSource;
+    private CacheManifest mManifest;
+
+    // 地图直接从APK中的asset解码
+    private final static String MAP_ASSET_NAME = "beijing_subway.jpg";
+    // 旧版本从asset复制出来的地图文件，启动时删除
     private final static String MAP_FILE_NAME = "map1.jpg";
+    private final static String PYRAMID_DIR_NAME = "map1_tiles";
+    private final static String PREVIEW_FILE_NAME = "map1_preview.jpg";
+    private final static String PIXEL_CACHE_FILE_NAME = "map1.raw";
+    private final static String MANIFEST_FILE_NAME = "map1_cache.properties";
+    private final static String METADATA_FILE_NAME = "image_metadata.dat";
+
+    // 清单中记录的由地图生成的缓存
+    private final static String ARTIFACT_PYRAMID = "pyramid";
+    private final static String ARTIFACT_PREVIEW = "preview";
+    private final static String ARTIFACT_PIXELS = "pixels";
+    private final static int PIXELS_FORMAT_VERSION = 2;
+
+    // 分块解码地图，失败时退回整图解码
+    private static final boolean TILED_MODE = true;
+
+    private StartupPipeline mStartup;
+
+    // 分块或者整图已经显示
+    private boolean mMapLoaded = false;
 
-    private static final int LOAD_IMAGE = 1000;
-    private Handler mHandler = new Handler() {
-        public void handleMessage(Message msg) {
-            switch (msg.what) {
-            case LOAD_IMAGE:
-                checkLoadData();
-                break;
+    // 屏幕旋转时交给下一个Activity的数据，正在切分的金字塔任务也属于它
+    private RetainedMap mRetained;
+    private boolean mRetaining = false;
+
+    /**
+     * 屏幕旋转时保留的地图，新的Activity直接使用，不重新解码
+     */
+    private static class RetainedMap {
+        TileManager tileManager;
+        Bitmap bitmap;
+
+        void release() {
+            TaskScheduler.getInstance().cancelAll(this);
+            if (tileManager != null) {
+                tileManager.release();
+                tileManager = null;
+            }
+            if (bitmap != null) {
+                // 可能正在由WritePixelsTask写入缓存
+                synchronized (bitmap) {
+                    bitmap.recycle();
+                }
+                bitmap = null;
             }
         }
-    };
+    }
 
     /** Called when the activity is first created. */
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        
-        YoumiPush.startYoumiPush(this, "2d544ff83e17d0d4", "a871d930440ed6a7", false);
+        mStartup = new StartupPipeline();
+        MemoryGovernor.getInstance().init(this);
+        ImageMetadataCache.getInstance().init(new File(getFilesDir(), METADATA_FILE_NAME));
+        mMapSource = ImageSource.fromAsset(this, MAP_ASSET_NAME);
+        mManifest = new CacheManifest(new File(getFilesDir(), MANIFEST_FILE_NAME));
+        mTilePyramid = new TilePyramid(new File(getFilesDir(), PYRAMID_DIR_NAME));
+
+        mRetained = (RetainedMap) getLastNonConfigurationInstance();
+        boolean retainedMap = mRetained != null && (mRetained.tileManager != null || mRetained.bitmap != null);
+        if (mRetained == null) {
+            mRetained = new RetainedMap();
+        }
+        if (!retainedMap) {
+            // 先提交预览图、检查和解码，在后台与View的创建并行
+            submit(new PreviewTask());
+            checkLoadData();
+        }
 
+        mStartup.begin(StartupPipeline.STAGE_INFLATE);
         lp = new ViewGroup.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT);
         mTouchImageView = new TouchImageView(this);
+        mTouchImageView.setOnFirstDrawListener(new TouchImageView.OnFirstDrawListener() {
+
+            @Override
+            public void onFirstDraw() {
+                mStartup.onFirstFrame();
+            }
+        });
+        mTouchImageView.restoreViewport(savedInstanceState);
         this.setContentView(mTouchImageView, lp);
+        mStartup.end(StartupPipeline.STAGE_INFLATE);
 
-        mProgressDialog = new ProgressDialog(this);
-        mProgressDialog.setMessage("正在加载中...");
-        mProgressDialog.setCanceledOnTouchOutside(false);
-        mProgressDialog.show();
+        if (retainedMap) {
+            // 屏幕旋转，只需要重新布局，已经解码的分块继续使用
+            if (mRetained.tileManager != null) {
+                mTouchImageView.setTileManager(mRetained.tileManager);
+            } else {
+                mTouchImageView.setImageBitmap(mRetained.bitmap);
+            }
+            mRetained.tileManager = null;
+            mRetained.bitmap = null;
+            mMapLoaded = true;
+        }
+
+        // 推送不影响地图显示，放到第一帧之后的空闲时间，地图加载失败时也会执行
+        mStartup.runWhenIdle(new Runnable() {
 
-        mHandler.sendEmptyMessageDelayed(LOAD_IMAGE, 150);
+            @Override
+            public void run() {
+                YoumiPush.startYoumiPush(SubwayMainActivity.this, "2d544ff83e17d0d4", "a871d930440ed6a7", false);
+            }
+        });
     }
 
     private void checkLoadData() {
-        String saveFileFullPath = this.getFilesDir().getAbsolutePath() + File.separator + MAP_FILE_NAME;
-        if (!TextUtils.isEmpty(saveFileFullPath)) {
-            if (ImageUtils.isBitmapData(saveFileFullPath)) {
-                new LoadFilesTask().execute(saveFileFullPath);
+        mStartup.begin(StartupPipeline.STAGE_PROBE);
+        submit(new CheckDataTask());
+    }
+
+    private void loadMap(boolean pyramidValid) {
+        mStartup.begin(StartupPipeline.STAGE_DECODE);
+        if (TILED_MODE) {
+            submit(new LoadTilesTask(pyramidValid));
+        } else {
+            submit(new LoadFilesTask());
+        }
+    }
+
+    /**
+     * 分块和整图都因为内存不足解码失败时不提示失败，继续显示低分辨率的预览图，还没有预览图时解码一张
+     */
+    private void showDegradedMap() {
+        Log.d(TAG, "[[showDegradedMap]] memory level = " + MemoryGovernor.getInstance().getLevel());
+        mMapLoaded = true;
+        dismissProgress();
+        mStartup.startIdleTasks();
+        if (!mTouchImageView.isShowingPreview()) {
+            submit(new PreviewTask());
+        }
+    }
+
+    private void showLoadFailed() {
+        Toast.makeText(getApplicationContext(), "加载失败", Toast.LENGTH_SHORT).show();
+        dismissProgress();
+        // 没有地图可画，推送等空闲任务不再等第一帧
+        mStartup.startIdleTasks();
+    }
+
+    private void submit(ScheduledTask<?> task) {
+        TaskScheduler.getInstance().submit(task);
+    }
+
+    private int getAppVersion() {
+        try {
+            return getPackageManager().getPackageInfo(getPackageName(), 0).versionCode;
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return 0;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        MemoryGovernor.getInstance().onTrimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        MemoryGovernor.getInstance().onLowMemory();
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        mTouchImageView.saveViewport(outState);
+    }
+
+    @Override
+    public Object onRetainNonConfigurationInstance() {
+        mRetained.tileManager = mTouchImageView.detachTileManager();
+        mRetained.bitmap = mTouchImageView.detachBitmap();
+        mRetaining = true;
+        return mRetained;
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // 丢弃这个Activity提交的所有任务
+        TaskScheduler.getInstance().cancelAll(this);
+        mStartup.cancel();
+        mTouchImageView.recycle();
+        if (!mRetaining) {
+            mRetained.release();
+        }
+    }
+
+    /**
+     * 没有预览图可以显示时才显示进度框
+     */
+    private void showProgress() {
+        if (mMapLoaded || isFinishing()) {
+            return;
+        }
+        if (mProgressDialog == null) {
+            mProgressDialog = new ProgressDialog(this);
+            mProgressDialog.setMessage("正在加载中...");
+            mProgressDialog.setCanceledOnTouchOutside(false);
+        }
+        mProgressDialog.show();
+    }
+
+    private void dismissProgress() {
+        if (mProgressDialog != null && mProgressDialog.isShowing()) {
+            mProgressDialog.dismiss();
+        }
+    }
+
+    private class PreviewTask extends ScheduledTask<PreviewImage> {
+        private final int mAppVersion = getAppVersion();
+
+        PreviewTask() {
+            super("map:preview", TaskScheduler.PRIORITY_IMMEDIATE, SubwayMainActivity.this);
+        }
+
+        protected PreviewImage doInBackground() {
+            if (!mManifest.verifySource(mMapSource, mAppVersion)) {
+                return null;
+            }
+
+            PreviewImage preview = new PreviewImage(new File(getFilesDir(), PREVIEW_FILE_NAME));
+            boolean saved = mManifest.isArtifactValid(ARTIFACT_PREVIEW, PreviewImage.FORMAT_VERSION);
+            if (!preview.load(mMapSource, mManifest.getSourceWidth(), mManifest.getSourceHeight(), saved)) {
+                return null;
+            }
+            if (!saved) {
+                mManifest.putArtifact(ARTIFACT_PREVIEW, PreviewImage.FORMAT_VERSION);
+            }
+            return preview;
+        }
+
+        protected void onPostExecute(PreviewImage result) {
+            if (result != null) {
+                Log.d(TAG, "[[PreviewTask::onPostExecute]] preview at " + mStartup.getElapsed() + "ms");
+                mTouchImageView.setPreviewBitmap(result.getBitmap(), result.getImageWidth(),
+                        result.getImageHeight());
             } else {
-                new ExtraFilesTask().execute(saveFileFullPath);
+                showProgress();
+            }
+        }
+
+        protected void onCancelled(PreviewImage result) {
+            if (result != null) {
+                result.getBitmap().recycle();
             }
         }
     }
 
-    private class LoadFilesTask extends AsyncTask<String, Integer, Bitmap> {
-        protected Bitmap doInBackground(String... paths) {
-            return ImageUtils.loadBitmapWithSizeCheck(new File(paths[0]));
+    private static final int DATA_PYRAMID = 0;
+    private static final int DATA_MAP = 1;
+    private static final int DATA_MISSING = 2;
+
+    private class CheckDataTask extends ScheduledTask<Integer> {
+        private final int mAppVersion = getAppVersion();
+
+        CheckDataTask() {
+            super("map:check", TaskScheduler.PRIORITY_IMMEDIATE, SubwayMainActivity.this);
         }
 
-        protected void onPostExecute(Bitmap result) {
+        protected Integer doInBackground() {
+            File legacyFile = new File(getFilesDir(), MAP_FILE_NAME);
+            if (legacyFile.exists()) {
+                legacyFile.delete();
+            }
+
+            // 原图没变时只读取一个很小的清单文件
+            if (!mManifest.verifySource(mMapSource, mAppVersion)) {
+                return DATA_MISSING;
+            }
+            if (TILED_MODE && mManifest.isArtifactValid(ARTIFACT_PYRAMID, TilePyramid.FORMAT_VERSION)
+                    && mTilePyramid.isValid()) {
+                return DATA_PYRAMID;
+            }
+            return DATA_MAP;
+        }
+
+        protected void onPostExecute(Integer result) {
+            mStartup.end(StartupPipeline.STAGE_PROBE);
+            if (result == DATA_MISSING) {
+                Log.d(TAG, "[[CheckDataTask::onPostExecute]] missing " + mMapSource);
+                showLoadFailed();
+            } else {
+                loadMap(result == DATA_PYRAMID);
+            }
+        }
+    }
+
+    private class LoadTilesTask extends ScheduledTask<TileSource> {
+        private final boolean mPyramidValid;
+        private boolean mBuildPyramid;
+
+        LoadTilesTask(boolean pyramidValid) {
+            super("map:tiles", TaskScheduler.PRIORITY_IMMEDIATE, SubwayMainActivity.this);
+            mPyramidValid = pyramidValid;
+        }
+
+        protected TileSource doInBackground() {
+            if (mPyramidValid) {
+                TileSource source = PyramidTileSource.newInstance(mTilePyramid);
+                if (source != null) {
+                    return source;
+                }
+            }
+            // 首次运行或升级后，先直接从asset按区域解码原图，再在后台切分金字塔
+            mBuildPyramid = true;
+            return RegionTileSource.newInstance(mMapSource);
+        }
+
+        protected void onPostExecute(TileSource result) {
             if (result != null) {
-                mTouchImageView.setImageBitmap(result);
+                mStartup.end(StartupPipeline.STAGE_DECODE);
+                // 替换预览图，保持当前位置，先画底图，分块在之后逐步补上
+                mTouchImageView.setTileSource(result);
+                mMapLoaded = true;
+                dismissProgress();
+                if (mBuildPyramid) {
+                    submit(new BuildPyramidTask(mRetained, mTilePyramid, mManifest, mMapSource));
+                }
             } else {
-                Toast.makeText(getApplicationContext(), "加载失败", Toast.LENGTH_SHORT).show();
+                submit(new LoadFilesTask());
             }
-            if (mProgressDialog != null && mProgressDialog.isShowing()) {
-                mProgressDialog.dismiss();
+        }
+
+        protected void onCancelled(TileSource result) {
+            if (result != null) {
+                result.recycle();
             }
         }
     }
 
-    private class ExtraFilesTask extends AsyncTask<String, Integer, Boolean> {
-        private String mPath;
+    /**
+     * 属于RetainedMap，屏幕旋转时不中断，不引用Activity
+     */
+    private static class BuildPyramidTask extends ScheduledTask<Boolean> {
+        private final TilePyramid mPyramid;
+        private final CacheManifest mManifest;
+        private final ImageSource mSource;
 
-        protected Boolean doInBackground(String... paths) {
-            mPath = paths[0];
-            return AssetsIOHelper.saveAssetsFileToDest(getApplicationContext(), "beijing_subway.jpg", paths[0]);
+        BuildPyramidTask(RetainedMap owner, TilePyramid pyramid, CacheManifest manifest, ImageSource source) {
+            super("map:pyramid", TaskScheduler.PRIORITY_BACKGROUND, owner);
+            mPyramid = pyramid;
+            mManifest = manifest;
+            mSource = source;
+        }
+
+        protected Boolean doInBackground() {
+            mManifest.removeArtifact(ARTIFACT_PYRAMID);
+            if (mPyramid.build(mSource, this)) {
+                mManifest.putArtifact(ARTIFACT_PYRAMID, TilePyramid.FORMAT_VERSION);
+                return true;
+            }
+            return false;
         }
 
         protected void onPostExecute(Boolean result) {
-            Log.d(TAG, "[[onPostExecute]] result = " + result + " path = " + mPath + " ????????????");
+            Log.d(TAG, "[[BuildPyramidTask::onPostExecute]] result = " + result);
+        }
+    }
 
-            if (result) {
-                new LoadFilesTask().execute(mPath);
-            } else {
-                Toast.makeText(getApplicationContext(), "加载失败", Toast.LENGTH_SHORT).show();
-                if (mProgressDialog != null && mProgressDialog.isShowing()) {
-                    mProgressDialog.dismiss();
+    /**
+     * 把显示中的整图写入像素缓存，下次启动不用再解码JPEG。属于RetainedMap，屏幕旋转时不中断，不引用Activity。
+     */
+    private static class WritePixelsTask extends ScheduledTask<Boolean> {
+        private final File mFile;
+        private final Bitmap mBitmap;
+        private final CacheManifest mManifest;
+
+        WritePixelsTask(RetainedMap owner, File file, Bitmap bitmap, CacheManifest manifest) {
+            super("map:pixels", TaskScheduler.PRIORITY_BACKGROUND, owner);
+            mFile = file;
+            mBitmap = bitmap;
+            mManifest = manifest;
+        }
+
+        protected Boolean doInBackground() {
+            mManifest.removeArtifact(ARTIFACT_PIXELS);
+            synchronized (mBitmap) {
+                if (mBitmap.isRecycled() || !PixelCache.write(mFile, mBitmap, null)) {
+                    return false;
                 }
             }
+            mManifest.putArtifact(ARTIFACT_PIXELS, PIXELS_FORMAT_VERSION);
+            return true;
+        }
+
+        protected void onPostExecute(Boolean result) {
+            Log.d(TAG, "[[WritePixelsTask::onPostExecute]] result = " + result);
+        }
+    }
+
+    private class LoadFilesTask extends ScheduledTask<Bitmap> {
+        // 内存极度不足时只解码了地图中心的这部分，为空时是整张图
+        private final Rect mRegion = new Rect();
+        // 不是从像素缓存读取的，显示之后写入缓存
+        private boolean mDecoded;
+
+        LoadFilesTask() {
+            super("map:bitmap", TaskScheduler.PRIORITY_IMMEDIATE, SubwayMainActivity.this);
+        }
+
+        protected Bitmap doInBackground() {
+            File cacheFile = new File(getFilesDir(), PIXEL_CACHE_FILE_NAME);
+            if (mManifest.isArtifactValid(ARTIFACT_PIXELS, PIXELS_FORMAT_VERSION)) {
+                Bitmap bitmap = PixelCache.read(cacheFile, null);
+                if (bitmap != null) {
+                    return bitmap;
+                }
+            }
+
+            // 按屏幕大小和最大缩放比例解码，横竖屏都要清晰，取长边；内存不足时由MemoryGovernor逐级降低，
+            // 最后只解码地图中心
+            DisplayMetrics dm = getResources().getDisplayMetrics();
+            int screenSize = Math.max(dm.widthPixels, dm.heightPixels);
+            Bitmap bitmap = ImageUtils.loadBitmapWithMemSize(mMapSource, MemoryGovernor.getInstance()
+                    .getMemoryClass(), screenSize, screenSize, TouchImageView.MAX_SCALER, mRegion);
+            mDecoded = true;
+            return bitmap;
+        }
+
+        protected void onPostExecute(Bitmap result) {
+            if (result != null) {
+                mStartup.end(StartupPipeline.STAGE_DECODE);
+                if (!mRegion.isEmpty()) {
+                    Log.d(TAG, "[[LoadFilesTask::onPostExecute]] low memory, center only " + mRegion);
+                }
+                mTouchImageView.setImageBitmap(result);
+                mMapLoaded = true;
+                dismissProgress();
+                // 先显示，再在后台写像素缓存；只有中心区域时不写入，下次启动重新解码整张图
+                if (mDecoded && mRegion.isEmpty()) {
+                    submit(new WritePixelsTask(mRetained, new File(getFilesDir(), PIXEL_CACHE_FILE_NAME), result,
+                            mManifest));
+                }
+            } else {
+                showDegradedMap();
+            }
+        }
+
+        protected void onCancelled(Bitmap result) {
+            if (result != null) {
+                result.recycle();
+            }
         }
     }
 }
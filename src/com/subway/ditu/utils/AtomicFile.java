@@ -0,0 +1,157 @@
+/**
+ * AtomicFile.java
+ */
+package com.subway.ditu.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * 原子地替换一个文件：先写同目录下的临时文件，fsync之后再改名。进程在写的过程中被杀掉时，
+ * 原来的文件保持不变，不会留下写了一半的文件。android.util.AtomicFile要API 17才有。
+ *
+ * <pre>
+ * FileOutputStream out = atomicFile.startWrite();
+ * ...写入out
+ * atomicFile.finishWrite(out); // 失败时调用failWrite(out)
+ * </pre>
+ *
+ * 需要映射到内存写入时用startWriteRandomAccess，对应的finishWrite、failWrite传入RandomAccessFile。
+ */
+public class AtomicFile {
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final File mBaseFile;
+    private final File mTmpFile;
+
+    public AtomicFile(File baseFile) {
+        mBaseFile = baseFile;
+        mTmpFile = new File(baseFile.getPath() + TMP_SUFFIX);
+    }
+
+    public File getBaseFile() {
+        return mBaseFile;
+    }
+
+    /**
+     * 打开临时文件，上次没有完成的临时文件会被覆盖
+     */
+    public FileOutputStream startWrite() throws IOException {
+        makeParentDirs();
+        return new FileOutputStream(mTmpFile);
+    }
+
+    /**
+     * 以读写方式打开临时文件，可以设置长度、映射到内存写入。上次没有完成的临时文件会被清空。
+     */
+    public RandomAccessFile startWriteRandomAccess() throws IOException {
+        makeParentDirs();
+        RandomAccessFile raf = new RandomAccessFile(mTmpFile, "rw");
+        raf.setLength(0);
+        return raf;
+    }
+
+    /**
+     * fsync并关闭临时文件，再改名为目标文件
+     *
+     * @return 失败时删除临时文件，目标文件保持不变
+     */
+    public boolean finishWrite(FileOutputStream out) {
+        if (out == null) {
+            return false;
+        }
+
+        boolean success = false;
+        try {
+            out.flush();
+            out.getFD().sync();
+            success = true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            success = false;
+        }
+        return commit(success);
+    }
+
+    /**
+     * 同finishWrite(FileOutputStream)
+     */
+    public boolean finishWrite(RandomAccessFile raf) {
+        if (raf == null) {
+            return false;
+        }
+
+        boolean success = false;
+        try {
+            raf.getFD().sync();
+            success = true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        try {
+            raf.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            success = false;
+        }
+        return commit(success);
+    }
+
+    /**
+     * 写入失败，关闭并删除临时文件
+     */
+    public void failWrite(FileOutputStream out) {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        mTmpFile.delete();
+    }
+
+    /**
+     * 同failWrite(FileOutputStream)
+     */
+    public void failWrite(RandomAccessFile raf) {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        mTmpFile.delete();
+    }
+
+    /**
+     * 删除目标文件和临时文件
+     */
+    public void delete() {
+        mBaseFile.delete();
+        mTmpFile.delete();
+    }
+
+    private void makeParentDirs() {
+        File parent = mTmpFile.getParentFile();
+        if (parent != null && !parent.isDirectory()) {
+            parent.mkdirs();
+        }
+    }
+
+    private boolean commit(boolean success) {
+        if (success && mTmpFile.renameTo(mBaseFile)) {
+            return true;
+        }
+        mTmpFile.delete();
+        return false;
+    }
+}
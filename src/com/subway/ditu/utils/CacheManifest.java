@@ -0,0 +1,187 @@
+/**
+ * CacheManifest.java
+ */
+package com.subway.ditu.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.Properties;
+
+import android.util.Log;
+
+import com.subway.ditu.utils.image.ImageHeaderParser;
+import com.subway.ditu.utils.image.ImageMetadataCache;
+import com.subway.ditu.utils.image.ImageSource;
+
+/**
+ * 由原图生成的各种缓存(分块金字塔、像素缓存、预览图)的清单，保存在一个很小的属性文件里。
+ * 启动时只读这一个文件：原图的长度、修改时间和应用版本都没变时直接认为缓存有效；
+ * 变了才计算原图的CRC32，内容相同(例如只是升级了应用)时缓存继续有效，内容不同时作废所有缓存。
+ * 所有方法都是同步的，可以在多个任务中调用。
+ */
+public class CacheManifest {
+    private static final String TAG = "CacheManifest";
+    private static final boolean DEBUG = false;
+
+    private static final String KEY_SOURCE_NAME = "source.name";
+    private static final String KEY_SOURCE_LENGTH = "source.length";
+    private static final String KEY_SOURCE_MODIFIED = "source.modified";
+    private static final String KEY_SOURCE_CHECKSUM = "source.checksum";
+    private static final String KEY_SOURCE_WIDTH = "source.width";
+    private static final String KEY_SOURCE_HEIGHT = "source.height";
+    private static final String KEY_APP_VERSION = "appVersion";
+    private static final String ARTIFACT_PREFIX = "artifact.";
+
+    private final File mFile;
+    private Properties mProperties;
+    private boolean mVerified = false;
+
+    public CacheManifest(File file) {
+        mFile = file;
+    }
+
+    /**
+     * 检查原图是否变化，变化时作废所有缓存。只有第一次调用会做检查。
+     *
+     * @param source 原图
+     * @param appVersion 应用的versionCode
+     * @return 原图是否可用
+     */
+    public synchronized boolean verifySource(ImageSource source, int appVersion) {
+        if (mVerified) {
+            return getSourceWidth() > 0;
+        }
+        mVerified = true;
+
+        load();
+        long length = source.length();
+        long modified = source.lastModified();
+        if (source.getName().equals(mProperties.getProperty(KEY_SOURCE_NAME))
+                && getLong(KEY_SOURCE_LENGTH) == length && getLong(KEY_SOURCE_MODIFIED) == modified
+                && getLong(KEY_APP_VERSION) == appVersion && getSourceWidth() > 0) {
+            return true;
+        }
+
+        long curTime = System.currentTimeMillis();
+        ImageMetadataCache metadataCache = ImageMetadataCache.getInstance();
+        long checksum = metadataCache.getChecksum(source);
+        ImageHeaderParser.ImageHeader header = metadataCache.getHeader(source);
+        if (checksum < 0 || header == null) {
+            mProperties.clear();
+            save();
+            return false;
+        }
+
+        if (!source.getName().equals(mProperties.getProperty(KEY_SOURCE_NAME))
+                || getLong(KEY_SOURCE_LENGTH) != length || getLong(KEY_SOURCE_CHECKSUM) != checksum) {
+            // 内容变了，之前生成的缓存全部作废
+            mProperties.clear();
+        }
+        mProperties.setProperty(KEY_SOURCE_NAME, source.getName());
+        mProperties.setProperty(KEY_SOURCE_LENGTH, String.valueOf(length));
+        mProperties.setProperty(KEY_SOURCE_MODIFIED, String.valueOf(modified));
+        mProperties.setProperty(KEY_SOURCE_CHECKSUM, String.valueOf(checksum));
+        mProperties.setProperty(KEY_SOURCE_WIDTH, String.valueOf(header.width));
+        mProperties.setProperty(KEY_SOURCE_HEIGHT, String.valueOf(header.height));
+        mProperties.setProperty(KEY_APP_VERSION, String.valueOf(appVersion));
+        save();
+
+        if (DEBUG) {
+            Log.d(TAG, "[[verifySource]] " + source + " checksum = " + checksum + " cost = "
+                    + (System.currentTimeMillis() - curTime) + "ms");
+        }
+        return true;
+    }
+
+    public synchronized int getSourceWidth() {
+        return (int) getLong(KEY_SOURCE_WIDTH);
+    }
+
+    public synchronized int getSourceHeight() {
+        return (int) getLong(KEY_SOURCE_HEIGHT);
+    }
+
+    /**
+     * 缓存是否由当前的原图、按这个格式版本生成
+     */
+    public synchronized boolean isArtifactValid(String name, int formatVersion) {
+        load();
+        return getLong(ARTIFACT_PREFIX + name) == formatVersion;
+    }
+
+    /**
+     * 缓存生成完成后调用
+     */
+    public synchronized void putArtifact(String name, int formatVersion) {
+        load();
+        mProperties.setProperty(ARTIFACT_PREFIX + name, String.valueOf(formatVersion));
+        save();
+    }
+
+    /**
+     * 开始重新生成缓存前调用，生成中途失败时不会被当作有效的缓存
+     */
+    public synchronized void removeArtifact(String name) {
+        load();
+        if (mProperties.remove(ARTIFACT_PREFIX + name) != null) {
+            save();
+        }
+    }
+
+    private long getLong(String key) {
+        String value = mProperties.getProperty(key);
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void load() {
+        if (mProperties != null) {
+            return;
+        }
+
+        mProperties = new Properties();
+        if (!mFile.exists()) {
+            return;
+        }
+
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(mFile);
+            mProperties.load(in);
+        } catch (Exception e) {
+            e.printStackTrace();
+            mProperties.clear();
+        } finally {
+            try {
+                if (in != null) {
+                    in.close();
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 通过AtomicFile写入，写到一半时不会留下损坏的清单
+     */
+    private void save() {
+        AtomicFile atomicFile = new AtomicFile(mFile);
+        FileOutputStream out = null;
+        try {
+            out = atomicFile.startWrite();
+            mProperties.store(out, null);
+            atomicFile.finishWrite(out);
+        } catch (Exception e) {
+            e.printStackTrace();
+            atomicFile.failWrite(out);
+        }
+    }
+}
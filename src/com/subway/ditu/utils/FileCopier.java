@@ -0,0 +1,262 @@
+/**
+ * FileCopier.java
+ */
+package com.subway.ditu.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.zip.Checksum;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * 用FileChannel复制文件：文件到文件用transferTo，由内核直接复制，数据不经过Java堆；
+ * 其他的输入流用transferFrom，只使用一个固定的缓冲区。按CHUNK_SIZE分段复制，每段之后回调进度和速度。
+ * 方法都是同步的，需要在后台线程调用。
+ */
+public class FileCopier {
+    private static final String TAG = "FileCopier";
+    private static final boolean DEBUG = false;
+
+    // 每次transfer的最大字节数，也是回调进度的间隔
+    private static final long CHUNK_SIZE = 512 * 1024;
+
+    // 字节流复制时每个线程复用的缓冲区大小，以及每写入多少字节flush一次
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long FLUSH_SIZE = 1024 * 1024;
+
+    private static final ThreadLocal<byte[]> sBuffer = new ThreadLocal<byte[]>() {
+
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    /**
+     * 复制进度，在复制的线程回调
+     */
+    public static interface OnProgressListener {
+        /**
+         * @param copied 已经复制的字节数
+         * @param total 总字节数，未知时为-1
+         * @param bytesPerSecond 到目前为止的平均速度
+         */
+        public void onProgress(long copied, long total, long bytesPerSecond);
+    }
+
+    /**
+     * 复制整个文件
+     *
+     * @param src
+     * @param dest 不存在时创建
+     * @param append 是否追加到dest的末尾
+     * @param listener 可以为null
+     * @return 复制的字节数
+     * @throws IOException
+     */
+    public static long copy(File src, File dest, boolean append, OnProgressListener listener) throws IOException {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(src);
+            FileChannel channel = in.getChannel();
+            return copy(channel, 0, channel.size(), dest, append, listener);
+        } finally {
+            close(in);
+        }
+    }
+
+    /**
+     * 复制asset。不压缩存放的asset(jpg、png等)直接从APK文件中transferTo，压缩存放的退回读取流。
+     *
+     * @param context
+     * @param assetName
+     * @param dest 不存在时创建，已存在时覆盖
+     * @param listener 可以为null
+     * @return 复制的字节数
+     * @throws IOException
+     */
+    public static long copyAsset(Context context, String assetName, File dest, OnProgressListener listener)
+            throws IOException {
+        AssetFileDescriptor afd = openAssetFd(context, assetName);
+        if (afd == null) {
+            InputStream is = null;
+            try {
+                is = context.getAssets().open(assetName);
+                return copy(is, -1, dest, false, listener);
+            } finally {
+                close(is);
+            }
+        }
+
+        try {
+            // 用FileDescriptor创建的流关闭时不会关闭fd，fd由afd关闭
+            FileInputStream in = new FileInputStream(afd.getFileDescriptor());
+            return copy(in.getChannel(), afd.getStartOffset(), afd.getLength(), dest, false, listener);
+        } finally {
+            afd.close();
+        }
+    }
+
+    /**
+     * 从输入流复制到文件，不关闭输入流。FileInputStream从当前位置开始transferTo。
+     *
+     * @param is
+     * @param total 输入流的字节数，只用于回调进度，未知时为-1
+     * @param dest 不存在时创建
+     * @param append 是否追加到dest的末尾
+     * @param listener 可以为null
+     * @return 复制的字节数
+     * @throws IOException
+     */
+    public static long copy(InputStream is, long total, File dest, boolean append, OnProgressListener listener)
+            throws IOException {
+        if (is instanceof FileInputStream) {
+            FileChannel channel = ((FileInputStream) is).getChannel();
+            long position = channel.position();
+            long copied = copy(channel, position, channel.size() - position, dest, append, listener);
+            channel.position(position + copied);
+            return copied;
+        }
+
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(dest, append);
+            FileChannel destChannel = out.getChannel();
+            ReadableByteChannel srcChannel = Channels.newChannel(is);
+            long start = SystemClock.uptimeMillis();
+            long position = destChannel.position();
+            long copied = 0;
+            long count;
+            // transferFrom在输入流结束时返回0
+            while ((count = destChannel.transferFrom(srcChannel, position + copied, CHUNK_SIZE)) > 0) {
+                copied += count;
+                notifyProgress(listener, copied, total, start);
+            }
+            logThroughput(dest, copied, start);
+            return copied;
+        } finally {
+            close(out);
+        }
+    }
+
+    /**
+     * 按字节复制，文本和二进制都原样复制，不关闭两个流。缓冲区按线程复用，每写入FLUSH_SIZE才flush一次。
+     *
+     * @param is
+     * @param os
+     * @param total 输入流的字节数，只用于回调进度，未知时为-1
+     * @param checksum 不为null时同时更新复制的内容，用于校验
+     * @param listener 可以为null，每写入FLUSH_SIZE回调一次
+     * @return 复制的字节数
+     * @throws IOException
+     */
+    public static long copy(InputStream is, OutputStream os, long total, Checksum checksum,
+            OnProgressListener listener) throws IOException {
+        byte[] buffer = sBuffer.get();
+        long start = SystemClock.uptimeMillis();
+        long copied = 0;
+        long unflushed = 0;
+        int count;
+        while ((count = is.read(buffer)) != -1) {
+            os.write(buffer, 0, count);
+            if (checksum != null) {
+                checksum.update(buffer, 0, count);
+            }
+            copied += count;
+            unflushed += count;
+            if (unflushed >= FLUSH_SIZE) {
+                os.flush();
+                unflushed = 0;
+                notifyProgress(listener, copied, total, start);
+            }
+        }
+        os.flush();
+        if (unflushed > 0) {
+            notifyProgress(listener, copied, total, start);
+        }
+        return copied;
+    }
+
+    private static long copy(FileChannel src, long position, long length, File dest, boolean append,
+            OnProgressListener listener) throws IOException {
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(dest, append);
+            FileChannel destChannel = out.getChannel();
+            long start = SystemClock.uptimeMillis();
+            long copied = 0;
+            while (copied < length) {
+                long count = src.transferTo(position + copied, Math.min(CHUNK_SIZE, length - copied), destChannel);
+                if (count <= 0) {
+                    // 源文件在复制过程中变短了
+                    break;
+                }
+                copied += count;
+                notifyProgress(listener, copied, length, start);
+            }
+            logThroughput(dest, copied, start);
+            return copied;
+        } finally {
+            close(out);
+        }
+    }
+
+    /**
+     * 不压缩存放的asset才能openFd
+     */
+    private static AssetFileDescriptor openAssetFd(Context context, String assetName) throws IOException {
+        AssetFileDescriptor afd = null;
+        try {
+            afd = context.getAssets().openFd(assetName);
+        } catch (IOException e) {
+            // 压缩存放的asset
+            return null;
+        }
+
+        if (afd != null && afd.getLength() < 0) {
+            afd.close();
+            return null;
+        }
+        return afd;
+    }
+
+    private static void notifyProgress(OnProgressListener listener, long copied, long total, long start) {
+        if (listener != null) {
+            listener.onProgress(copied, total, getBytesPerSecond(copied, start));
+        }
+    }
+
+    private static long getBytesPerSecond(long copied, long start) {
+        long elapsed = Math.max(1, SystemClock.uptimeMillis() - start);
+        return copied * 1000 / elapsed;
+    }
+
+    private static void logThroughput(File dest, long copied, long start) {
+        if (DEBUG) {
+            Log.d(TAG, "[[copy]] " + dest + " bytes = " + copied + " cost = " + (SystemClock.uptimeMillis() - start)
+                    + "ms speed = " + getBytesPerSecond(copied, start) / 1024 + "KB/s");
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        try {
+            if (closeable != null) {
+                closeable.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
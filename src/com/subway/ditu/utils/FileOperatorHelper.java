@@ -1,16 +1,11 @@
 package com.subway.ditu.utils;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.util.LinkedList;
+import java.util.zip.CRC32;
 
 import android.text.TextUtils;
 
@@ -110,30 +105,12 @@ public class FileOperatorHelper {
      * @return
      */
     public static String saveFileByISSupportAppend(String targetPath, InputStream is) {
-        byte[] buffer = new byte[4096 * 2];
-        File f = new File(targetPath);
-        int len;
-        OutputStream os = null;
-
         try {
-            os = new FileOutputStream(f, true);
-            while ((len = is.read(buffer)) != -1) {
-                os.write(buffer, 0, len);
-            }
+            FileCopier.copy(is, -1, new File(targetPath), true, null);
             return targetPath;
         } catch (Exception ex) {
             ex.printStackTrace();
             return null;
-        } finally {
-            if (os != null) {
-                try {
-                    os.close();
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            }
-
-            buffer = null;
         }
     }
 
@@ -168,10 +145,7 @@ public class FileOperatorHelper {
         if (!file.exists() || file.isDirectory()) {
             return null;
         }
-        FileInputStream fi = null;
-        FileOutputStream fo = null;
         try {
-            fi = new FileInputStream(file);
             File destPlace = new File(dest);
             if (!destPlace.exists()) {
                 if (!destPlace.mkdirs())
@@ -192,71 +166,51 @@ public class FileOperatorHelper {
                 return null;
             }
 
-            fo = new FileOutputStream(destFile);
-            int count = 102400;
-            byte[] buffer = new byte[count];
-            int read = 0;
-            while ((read = fi.read(buffer, 0, count)) != -1) {
-                fo.write(buffer, 0, read);
-            }
+            FileCopier.copy(file, destFile, false, null);
 
             // TODO: set access privilege
 
             return destPath;
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
         } catch (IOException e) {
             e.printStackTrace();
-        } finally {
-            try {
-                if (fi != null)
-                    fi.close();
-                if (fo != null)
-                    fo.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
         }
 
         return null;
     }
     
-    public static boolean copyFile(BufferedReader reader, String destPath) {
-        boolean ret = false;
-        if (reader == null) {
+    /**
+     * 把输入流按字节原样保存到文件，文本和二进制都可以，不关闭输入流。写完并校验通过才替换destPath。
+     * 
+     * @param is
+     * @param destPath
+     * @param expectedCrc 内容的CRC32，小于0时不校验
+     * @return
+     */
+    public static boolean copyFile(InputStream is, String destPath, long expectedCrc) {
+        if (is == null || TextUtils.isEmpty(destPath)) {
             return false;
         }
-        File destFile = new File(destPath);
-        if (destFile.exists()) {
-            destFile.delete();
-        }
-        BufferedWriter writer = null;
+
+        AtomicFile atomicFile = new AtomicFile(new File(destPath));
+        FileOutputStream out = null;
         try {
-            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(destFile)));
-            String read = "";
-            while ((read = reader.readLine()) != null) {
-                writer.write(read);
-                writer.newLine();
-                writer.flush();
-            }
-            ret = true;
-        } catch (FileNotFoundException e1) {
-            e1.printStackTrace();
-        } catch (IOException e2) {
-            e2.printStackTrace();
-        } finally {
-            try {
-                if (writer != null) {
-                    writer.close();
-                }
-                if (reader != null) {
-                    reader.close();
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
+            out = atomicFile.startWrite();
+            CRC32 crc = expectedCrc >= 0 ? new CRC32() : null;
+            FileCopier.copy(is, out, -1, crc, null);
+            if (crc != null && crc.getValue() != expectedCrc) {
+                atomicFile.failWrite(out);
+                return false;
             }
+            return atomicFile.finishWrite(out);
+        } catch (IOException e) {
+            e.printStackTrace();
+            atomicFile.failWrite(out);
         }
-        return ret;
+        return false;
+    }
+
+    public static boolean copyFile(InputStream is, String destPath) {
+        return copyFile(is, destPath, -1);
     }
     
 }
@@ -0,0 +1,243 @@
+/**
+ * MemoryGovernor.java
+ */
+package com.subway.ditu.utils;
+
+import java.util.ArrayList;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.subway.ditu.utils.image.DecodePlanner;
+
+/**
+ * 统一的内存预算：按设备的内存级别计算分块缓存和图片解码的预算，收到onTrimMemory/onLowMemory或者解码OOM时
+ * 提高压力级别，逐级缩小预算并通知缓存释放；一段时间没有新的压力后逐级恢复。
+ * <p>
+ * 解码失败时按 换更省内存的格式 -> 加大采样率 -> 只解码中心区域 的顺序重试，见nextRetry。
+ */
+public class MemoryGovernor {
+    private static final String TAG = "MemoryGovernor";
+    private static final boolean DEBUG = false;
+
+    // 压力级别，越大预算越小
+    public static final int LEVEL_NORMAL = 0;
+    public static final int LEVEL_MODERATE = 1;
+    public static final int LEVEL_LOW = 2;
+    public static final int LEVEL_CRITICAL = 3;
+
+    // 各级别的预算比例
+    private static final float[] BUDGET_RATIOS = { 1.0f, 0.5f, 0.25f, 0.125f };
+
+    // 分块缓存、单张图片解码占应用可用内存的比例
+    private static final int TILE_CACHE_DIVIDER = 4;
+    private static final int DECODE_DIVIDER = 4;
+
+    // 没有新的压力时每隔这么久恢复一级
+    private static final long LEVEL_DECAY_MS = 30 * 1000;
+
+    // 换格式和加大采样率最多重试的次数，之后还可以再试一次只解码中心区域
+    private static final int MAX_RETRY = 4;
+
+    /**
+     * 压力级别变化时在主线程回调，缓存按新的预算收缩或者恢复
+     */
+    public static interface OnLevelChangeListener {
+        public void onLevelChanged(int level);
+    }
+
+    private static MemoryGovernor sInstance;
+
+    private int mMemoryClass;
+    private int mLevel = LEVEL_NORMAL;
+    private long mLevelTime;
+
+    private final ArrayList<OnLevelChangeListener> mListeners = new ArrayList<OnLevelChangeListener>();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // 压力升高后定时检查是否可以恢复，没有人查询级别时缓存也能长回来
+    private final Runnable mDecayRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            if (getLevel() > LEVEL_NORMAL) {
+                mMainHandler.removeCallbacks(this);
+                mMainHandler.postDelayed(this, LEVEL_DECAY_MS);
+            }
+        }
+    };
+
+    public static synchronized MemoryGovernor getInstance() {
+        if (sInstance == null) {
+            sInstance = new MemoryGovernor();
+        }
+        return sInstance;
+    }
+
+    private MemoryGovernor() {
+        mMemoryClass = (int) (Runtime.getRuntime().maxMemory() / 1024 / 1024);
+    }
+
+    /**
+     * 用ActivityManager的内存级别代替堆大小，启动时调用
+     */
+    public synchronized void init(Context context) {
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        if (am != null && am.getMemoryClass() > 0) {
+            mMemoryClass = am.getMemoryClass();
+        }
+    }
+
+    /**
+     * 应用可用内存，MB
+     */
+    public synchronized int getMemoryClass() {
+        return mMemoryClass;
+    }
+
+    /**
+     * 当前的压力级别，长时间没有新的压力时逐级恢复
+     */
+    public synchronized int getLevel() {
+        if (mLevel > LEVEL_NORMAL && SystemClock.uptimeMillis() - mLevelTime > LEVEL_DECAY_MS) {
+            setLevel(mLevel - 1);
+        }
+        return mLevel;
+    }
+
+    public float getBudgetRatio() {
+        return BUDGET_RATIOS[getLevel()];
+    }
+
+    /**
+     * 分块缓存的字节数
+     */
+    public int getTileCacheBudget() {
+        return (int) (getMemoryClass() * 1024L * 1024 / TILE_CACHE_DIVIDER * getBudgetRatio());
+    }
+
+    /**
+     * 单张图片解码结果的最大字节数
+     */
+    public long getDecodeBudget() {
+        return getDecodeBudget(getMemoryClass());
+    }
+
+    /**
+     * 按指定的内存级别计算单张图片解码结果的最大字节数，同样按当前的压力缩小
+     *
+     * @param memoryClass 应用可用内存，MB
+     */
+    public long getDecodeBudget(int memoryClass) {
+        return (long) (memoryClass * 1024L * 1024 / DECODE_DIVIDER * getBudgetRatio());
+    }
+
+    public synchronized void addListener(OnLevelChangeListener listener) {
+        if (!mListeners.contains(listener)) {
+            mListeners.add(listener);
+        }
+    }
+
+    public synchronized void removeListener(OnLevelChangeListener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Activity.onTrimMemory
+     */
+    public void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            raiseTo(LEVEL_CRITICAL);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            raiseTo(LEVEL_LOW);
+        } else {
+            // RUNNING_MODERATE、UI_HIDDEN
+            raiseTo(LEVEL_MODERATE);
+        }
+    }
+
+    /**
+     * Activity.onLowMemory
+     */
+    public void onLowMemory() {
+        raiseTo(LEVEL_CRITICAL);
+    }
+
+    /**
+     * 解码时发生OutOfMemoryError，可以在任意线程调用
+     */
+    public synchronized void onOutOfMemory() {
+        raiseTo(Math.min(LEVEL_CRITICAL, mLevel + 1));
+    }
+
+    /**
+     * 解码失败后的下一个方案：ARGB_8888先换成每像素2字节的格式，之后每次采样率加倍，重试MAX_RETRY次还失败时，
+     * 方案允许的话恢复最初的采样率，只解码中心区域(Plan.cropToCenter)
+     *
+     * @param plan 失败的方案，直接修改
+     * @param attempt 已经失败的次数，从1开始
+     * @param opaque 图片没有透明通道，可以用RGB_565，否则用ARGB_4444
+     * @return 没有可以重试的方案时返回false
+     */
+    public boolean nextRetry(DecodePlanner.Plan plan, int attempt, boolean opaque) {
+        if (plan == null) {
+            return false;
+        }
+
+        if (attempt > MAX_RETRY) {
+            if (attempt > MAX_RETRY + 1 || !plan.regionFallback || plan.isPartial()) {
+                return false;
+            }
+            plan.cropToCenter();
+        } else if (plan.config == Bitmap.Config.ARGB_8888) {
+            plan.config = opaque ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_4444;
+            plan.dither = true;
+        } else {
+            plan.downgrade();
+        }
+        if (DEBUG) {
+            Log.d(TAG, "[[nextRetry]] attempt = " + attempt + " " + plan);
+        }
+        return plan.getWidth() > 0 && plan.getHeight() > 0;
+    }
+
+    private synchronized void raiseTo(int level) {
+        mLevelTime = SystemClock.uptimeMillis();
+        if (level > mLevel) {
+            setLevel(level);
+        }
+    }
+
+    private void setLevel(int level) {
+        mLevel = level;
+        mLevelTime = SystemClock.uptimeMillis();
+        if (DEBUG) {
+            Log.d(TAG, "[[setLevel]] level = " + level + " memoryClass = " + mMemoryClass);
+        }
+
+        mMainHandler.removeCallbacks(mDecayRunnable);
+        if (level > LEVEL_NORMAL) {
+            mMainHandler.postDelayed(mDecayRunnable, LEVEL_DECAY_MS + 1);
+        }
+
+        final ArrayList<OnLevelChangeListener> listeners = new ArrayList<OnLevelChangeListener>(mListeners);
+        final int newLevel = level;
+        mMainHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                for (OnLevelChangeListener listener : listeners) {
+                    listener.onLevelChanged(newLevel);
+                }
+            }
+        });
+    }
+}
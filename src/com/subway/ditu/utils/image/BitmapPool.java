@@ -0,0 +1,121 @@
+/**
+ * BitmapPool.java
+ */
+package com.subway.ditu.utils.image;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+/**
+ * 按宽、高、格式分桶的可复用Bitmap池，供BitmapFactory.Options.inBitmap使用。 HONEYCOMB以下不支持inBitmap，池始终为空。
+ */
+public class BitmapPool {
+
+    private final HashMap<Long, LinkedList<Bitmap>> mBuckets = new HashMap<Long, LinkedList<Bitmap>>();
+
+    // 放入的先后顺序，超出容量时先淘汰最早放入的
+    private final LinkedList<Bitmap> mOrder = new LinkedList<Bitmap>();
+
+    private int mMaxSize;
+    private int mSize;
+
+    /**
+     * @param maxSize 池中Bitmap的最大字节数
+     */
+    public BitmapPool(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    public synchronized void setMaxSize(int maxSize) {
+        mMaxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    }
+
+    /**
+     * 取出一个尺寸和格式完全相同的Bitmap
+     * 
+     * @return 没有时返回null
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        if (config == null) {
+            return null;
+        }
+
+        LinkedList<Bitmap> bucket = mBuckets.get(makeKey(width, height, config));
+        if (bucket == null || bucket.isEmpty()) {
+            return null;
+        }
+
+        Bitmap bitmap = bucket.removeFirst();
+        mOrder.remove(bitmap);
+        mSize -= getBitmapSize(bitmap);
+        return bitmap;
+    }
+
+    /**
+     * 放入一个不再使用的Bitmap，不能复用的直接recycle
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+
+        int size = getBitmapSize(bitmap);
+        if (!isSupported() || !bitmap.isMutable() || bitmap.getConfig() == null || size > mMaxSize) {
+            bitmap.recycle();
+            return;
+        }
+
+        long key = makeKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        LinkedList<Bitmap> bucket = mBuckets.get(key);
+        if (bucket == null) {
+            bucket = new LinkedList<Bitmap>();
+            mBuckets.put(key, bucket);
+        }
+        bucket.addLast(bitmap);
+        mOrder.addLast(bitmap);
+        mSize += size;
+
+        trimToSize(mMaxSize);
+    }
+
+    /**
+     * 淘汰最早放入的Bitmap，直到不超过maxSize
+     */
+    public synchronized void trimToSize(int maxSize) {
+        while (mSize > maxSize && !mOrder.isEmpty()) {
+            Bitmap bitmap = mOrder.removeFirst();
+            LinkedList<Bitmap> bucket = mBuckets.get(makeKey(bitmap.getWidth(), bitmap.getHeight(),
+                    bitmap.getConfig()));
+            if (bucket != null) {
+                bucket.remove(bitmap);
+            }
+            mSize -= getBitmapSize(bitmap);
+            bitmap.recycle();
+        }
+    }
+
+    public synchronized void clear() {
+        trimToSize(0);
+        mBuckets.clear();
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public static int getBitmapSize(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    private static long makeKey(int width, int height, Bitmap.Config config) {
+        return ((long) width << 32) | ((long) height << 8) | config.ordinal();
+    }
+}
@@ -0,0 +1,274 @@
+/**
+ * DecodePlanner.java
+ */
+package com.subway.ditu.utils.image;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+import android.util.Log;
+
+import com.subway.ditu.utils.MemoryGovernor;
+
+/**
+ * 根据图片的真实尺寸决定怎样解码：采样率、解码区域和像素格式。
+ * 采样率取显示需要的最大值，即在最大缩放比例下解码出的像素仍不少于屏幕像素，再按内存预算继续加大，
+ * 不再用压缩后的文件大小估算像素数。
+ */
+public class DecodePlanner {
+    private static final String TAG = "DecodePlanner";
+    private static final boolean DEBUG = false;
+
+    /**
+     * 解码方案
+     */
+    public static class Plan {
+        // 原图的尺寸
+        public final int imageWidth;
+        public final int imageHeight;
+        public int sampleSize;
+        // 按显示需要和内存预算算出的采样率，只解码区域时恢复到这个采样率
+        public int initialSampleSize;
+        // 内存不足时是否可以只解码中心区域，调用者要能显示部分图片
+        public boolean regionFallback;
+        // 原图上的解码区域，比原图小时用BitmapRegionDecoder只解码这一部分
+        public final Rect region = new Rect();
+        public Bitmap.Config config;
+        // RGB_565有渐变时抖动，避免色带
+        public boolean dither;
+
+        Plan(int imageWidth, int imageHeight) {
+            this.imageWidth = imageWidth;
+            this.imageHeight = imageHeight;
+        }
+
+        /**
+         * 只解码原图的一部分
+         */
+        public boolean isPartial() {
+            return region.left > 0 || region.top > 0 || region.right < imageWidth || region.bottom < imageHeight;
+        }
+
+        public int getWidth() {
+            return (region.width() + sampleSize - 1) / sampleSize;
+        }
+
+        public int getHeight() {
+            return (region.height() + sampleSize - 1) / sampleSize;
+        }
+
+        /**
+         * 解码结果占用的字节数
+         */
+        public long getByteCount() {
+            return (long) getWidth() * getHeight() * getBytesPerPixel(config);
+        }
+
+        /**
+         * 内存不足时换一个采样率加倍的方案重试
+         */
+        public void downgrade() {
+            sampleSize *= 2;
+        }
+
+        /**
+         * 加大采样率也解码失败时的最后一步：恢复最初的采样率，只解码区域中心的一部分，
+         * 字节数与采样率再加倍时相同，看到的部分仍然清晰
+         */
+        public void cropToCenter() {
+            int scale = Math.max(2, sampleSize * 2 / initialSampleSize);
+            int width = Math.max(1, region.width() / scale);
+            int height = Math.max(1, region.height() / scale);
+            int left = region.centerX() - width / 2;
+            int top = region.centerY() - height / 2;
+            region.set(left, top, left + width, top + height);
+            sampleSize = initialSampleSize;
+        }
+
+        public void applyTo(BitmapFactory.Options opt) {
+            opt.inSampleSize = sampleSize;
+            opt.inPreferredConfig = config;
+            opt.inDither = dither;
+        }
+
+        @Override
+        public String toString() {
+            return "Plan[sampleSize = " + sampleSize + " region = " + region.width() + "x" + region.height()
+                    + " config = " + config + " dither = " + dither + " bytes = " + getByteCount() + "]";
+        }
+    }
+
+    private final int mImageWidth;
+    private final int mImageHeight;
+
+    private int mTargetWidth;
+    private int mTargetHeight;
+    private float mMaxZoom = 1.0f;
+    private Bitmap.Config mConfig = Bitmap.Config.ARGB_8888;
+    private long mMemoryBudget = MemoryGovernor.getInstance().getDecodeBudget();
+    private boolean mFill = false;
+    private boolean mDither = false;
+    private boolean mRegionFallback = false;
+    private Rect mRegion;
+
+    /**
+     * @param imageWidth 图片的真实宽度，来自文件头
+     * @param imageHeight 图片的真实高度
+     */
+    public DecodePlanner(int imageWidth, int imageHeight) {
+        mImageWidth = imageWidth;
+        mImageHeight = imageHeight;
+    }
+
+    /**
+     * 用文件头中的尺寸创建，见ImageUtils.readHeader
+     */
+    public static DecodePlanner fromHeader(ImageHeaderParser.ImageHeader header) {
+        return new DecodePlanner(header.width, header.height);
+    }
+
+    /**
+     * 显示区域的大小，解码区域按适应这个大小显示。不设置时不按显示需要采样，只受内存预算限制。
+     */
+    public DecodePlanner setTargetSize(int width, int height) {
+        mTargetWidth = width;
+        mTargetHeight = height;
+        return this;
+    }
+
+    /**
+     * 拉伸或者裁剪铺满显示区域时，两个方向都要不少于显示区域的像素
+     */
+    public DecodePlanner setFill(boolean fill) {
+        mFill = fill;
+        return this;
+    }
+
+    /**
+     * 相对于适应显示区域的最大放大倍数，放大到这个倍数时仍然清晰
+     */
+    public DecodePlanner setMaxZoom(float maxZoom) {
+        mMaxZoom = Math.max(1.0f, maxZoom);
+        return this;
+    }
+
+    public DecodePlanner setConfig(Bitmap.Config config) {
+        if (config != null) {
+            mConfig = config;
+        }
+        return this;
+    }
+
+    /**
+     * 没有透明通道的图片(如地图和它的分块)解码为每像素2字节的RGB_565，有透明通道的保持ARGB_8888
+     */
+    public DecodePlanner setOpaque(boolean opaque) {
+        mConfig = opaque ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+        return this;
+    }
+
+    /**
+     * RGB_565时是否抖动，由ImageUtils.hasBandingRisk检查
+     */
+    public DecodePlanner setDither(boolean dither) {
+        mDither = dither;
+        return this;
+    }
+
+    /**
+     * 解码结果最多占用的字节数
+     */
+    public DecodePlanner setMemoryBudget(long bytes) {
+        if (bytes > 0) {
+            mMemoryBudget = bytes;
+        }
+        return this;
+    }
+
+    /**
+     * 按应用的内存级别和当前的内存压力设置预算
+     *
+     * @param memClass ActivityManager.getMemoryClass()，MB
+     */
+    public DecodePlanner setMemoryClass(int memClass) {
+        return setMemoryBudget(MemoryGovernor.getInstance().getDecodeBudget(memClass));
+    }
+
+    /**
+     * 只解码原图的一部分，不设置时解码整张图。结果的尺寸是区域按采样率缩小后的尺寸。
+     */
+    public DecodePlanner setRegion(Rect region) {
+        mRegion = region;
+        return this;
+    }
+
+    /**
+     * 内存不足时允许只解码中心区域，见MemoryGovernor.nextRetry。只有能显示部分图片的调用者才设置。
+     */
+    public DecodePlanner setRegionFallback(boolean regionFallback) {
+        mRegionFallback = regionFallback;
+        return this;
+    }
+
+    /**
+     * @return 尺寸无效时返回null
+     */
+    public Plan plan() {
+        if (mImageWidth <= 0 || mImageHeight <= 0) {
+            return null;
+        }
+
+        Plan plan = new Plan(mImageWidth, mImageHeight);
+        plan.config = mConfig;
+        plan.dither = mDither && mConfig == Bitmap.Config.RGB_565;
+        plan.regionFallback = mRegionFallback;
+        plan.region.set(0, 0, mImageWidth, mImageHeight);
+        if (mRegion != null && !plan.region.intersect(mRegion)) {
+            return null;
+        }
+
+        int regionWidth = plan.region.width();
+        int regionHeight = plan.region.height();
+
+        // 最大缩放时每个原图像素对应的屏幕像素数，采样率不超过它的倒数
+        int sampleSize = 1;
+        if (mTargetWidth > 0 && mTargetHeight > 0) {
+            float scaleX = (float) mTargetWidth / regionWidth;
+            float scaleY = (float) mTargetHeight / regionHeight;
+            float maxScale = (mFill ? Math.max(scaleX, scaleY) : Math.min(scaleX, scaleY)) * mMaxZoom;
+            while (sampleSize * 2 * maxScale <= 1.0f) {
+                sampleSize *= 2;
+            }
+        }
+
+        plan.sampleSize = sampleSize;
+        while (plan.getByteCount() > mMemoryBudget && plan.getWidth() > 1 && plan.getHeight() > 1) {
+            plan.sampleSize *= 2;
+        }
+        plan.initialSampleSize = plan.sampleSize;
+
+        if (DEBUG) {
+            Log.d(TAG, "[[plan]] image = " + mImageWidth + "x" + mImageHeight + " target = " + mTargetWidth + "x"
+                    + mTargetHeight + " budget = " + mMemoryBudget + " " + plan);
+        }
+        return plan;
+    }
+
+    /**
+     * 文件头表明没有透明通道，解码出的像素一定不透明：JPEG、有损WebP，以及没有alpha和tRNS的PNG
+     *
+     * @param header ImageUtils.readHeader的结果
+     */
+    public static boolean isOpaque(ImageHeaderParser.ImageHeader header) {
+        return header != null && !header.hasAlpha;
+    }
+
+    public static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        } else if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+        return 4;
+    }
+}
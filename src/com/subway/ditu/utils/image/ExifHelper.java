@@ -10,7 +10,17 @@ public class ExifHelper {
     public static final int ROTATION_180 = 180;
     public static final int ROTATION_270 = 270;
     
+    /**
+     * 结果缓存在ImageMetadataCache中，文件没变时不再解析EXIF
+     * 
+     * @param filePath
+     * @return 0、90、180、270
+     */
     public static int getRotationFromExif(String filePath) {
+        return ImageMetadataCache.getInstance().getRotation(ImageSource.fromFile(filePath));
+    }
+
+    static int readRotation(String filePath) {
         try {
             ExifInterface exif = new ExifInterface(filePath);
             String rotationStr = exif.getAttribute(ExifInterface.TAG_ORIENTATION);
@@ -0,0 +1,301 @@
+/**
+ * ImageHeaderParser.java
+ */
+package com.subway.ditu.utils.image;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 直接读取文件头得到图片的格式、宽高和是否可能透明，不经过BitmapFactory的native解码器。
+ * 支持JPEG(SOF)、PNG(IHDR/tRNS)、WebP(VP8/VP8L/VP8X)和GIF，通常只读取前几百字节，JPEG的大段APP数据直接跳过。
+ * 只依赖java.io，可以在任意线程调用，也可以在普通JVM上运行。
+ */
+public class ImageHeaderParser {
+
+    public static final String MIME_JPEG = "image/jpeg";
+    public static final String MIME_PNG = "image/png";
+    public static final String MIME_WEBP = "image/webp";
+    public static final String MIME_GIF = "image/gif";
+
+    // 最多读取或跳过的字节数，超过时认为不是图片
+    private static final int MAX_SCAN_SIZE = 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 512;
+
+    /**
+     * 文件头中的信息
+     */
+    public static class ImageHeader {
+        public final String mimeType;
+        public final int width;
+        public final int height;
+        // 格式本身或者文件头声明了透明通道，为false时解码结果一定不透明
+        public final boolean hasAlpha;
+
+        public ImageHeader(String mimeType, int width, int height, boolean hasAlpha) {
+            this.mimeType = mimeType;
+            this.width = width;
+            this.height = height;
+            this.hasAlpha = hasAlpha;
+        }
+
+        @Override
+        public String toString() {
+            return "ImageHeader[" + mimeType + " " + width + "x" + height + " hasAlpha = " + hasAlpha + "]";
+        }
+    }
+
+    /**
+     * @return 不是支持的格式或者文件头损坏时返回null
+     */
+    public static ImageHeader parse(File file) {
+        if (file == null || !file.exists()) {
+            return null;
+        }
+
+        InputStream is = null;
+        try {
+            is = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+            return parse(is);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                if (is != null) {
+                    is.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        return null;
+    }
+
+    public static ImageHeader parse(byte[] data, int offset, int length) {
+        if (data == null) {
+            return null;
+        }
+
+        try {
+            return parse(new ByteArrayInputStream(data, offset, length));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * 从流的当前位置读取文件头，不关闭流
+     *
+     * @return 不是支持的格式或者文件头损坏时返回null
+     */
+    public static ImageHeader parse(InputStream is) throws IOException {
+        Reader reader = new Reader(is);
+        try {
+            int b0 = reader.readByte();
+            int b1 = reader.readByte();
+            if (b0 == 0xFF && b1 == 0xD8) {
+                return parseJpeg(reader);
+            } else if (b0 == 0x89 && b1 == 'P') {
+                return parsePng(reader);
+            } else if (b0 == 'R' && b1 == 'I') {
+                return parseWebp(reader);
+            } else if (b0 == 'G' && b1 == 'I') {
+                return parseGif(reader);
+            }
+        } catch (EOFException e) {
+            // 文件头不完整
+        }
+
+        return null;
+    }
+
+    /**
+     * 逐段跳过，直到SOF段
+     */
+    private static ImageHeader parseJpeg(Reader reader) throws IOException {
+        while (true) {
+            int marker = reader.readByte();
+            if (marker != 0xFF) {
+                return null;
+            }
+            // 段之间可以有填充的0xFF
+            while (marker == 0xFF) {
+                marker = reader.readByte();
+            }
+
+            if (marker == 0xD9 || marker == 0xDA) {
+                // 图片结束或者扫描开始之前都没有SOF
+                return null;
+            }
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                // 没有长度的独立标记
+                continue;
+            }
+
+            int length = reader.readShortBE();
+            if (length < 2) {
+                return null;
+            }
+            if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                reader.skip(1); // precision
+                int height = reader.readShortBE();
+                int width = reader.readShortBE();
+                return valid(new ImageHeader(MIME_JPEG, width, height, false));
+            }
+            reader.skip(length - 2);
+        }
+    }
+
+    /**
+     * IHDR之后继续查看tRNS，直到IDAT
+     */
+    private static ImageHeader parsePng(Reader reader) throws IOException {
+        if (reader.readByte() != 'N' || reader.readByte() != 'G' || reader.readInt() != 0x0D0A1A0A) {
+            return null;
+        }
+        int ihdrLength = reader.readInt();
+        if (reader.readInt() != 0x49484452 || ihdrLength < 13) { // "IHDR"
+            return null;
+        }
+        int width = reader.readInt();
+        int height = reader.readInt();
+        reader.skip(1); // bit depth
+        int colorType = reader.readByte();
+        reader.skip(ihdrLength - 10 + 4); // 剩余字段和CRC
+
+        // 4: 灰度+alpha 6: RGBA
+        boolean hasAlpha = colorType == 4 || colorType == 6;
+        while (!hasAlpha) {
+            int length = reader.readInt();
+            int type = reader.readInt();
+            if (type == 0x74524E53) { // "tRNS"
+                hasAlpha = true;
+            } else if (type == 0x49444154 || type == 0x49454E44 || length < 0) { // "IDAT" "IEND"
+                break;
+            } else {
+                reader.skip(length + 4L);
+            }
+        }
+        return valid(new ImageHeader(MIME_PNG, width, height, hasAlpha));
+    }
+
+    private static ImageHeader parseWebp(Reader reader) throws IOException {
+        if (reader.readByte() != 'F' || reader.readByte() != 'F') {
+            return null;
+        }
+        reader.skip(4); // RIFF size
+        if (reader.readInt() != 0x57454250) { // "WEBP"
+            return null;
+        }
+
+        int chunk = reader.readInt();
+        reader.skip(4); // chunk size
+        if (chunk == 0x56503820) { // "VP8 " 有损
+            reader.skip(3); // frame tag
+            if (reader.readByte() != 0x9D || reader.readByte() != 0x01 || reader.readByte() != 0x2A) {
+                return null;
+            }
+            int width = reader.readShortLE() & 0x3FFF;
+            int height = reader.readShortLE() & 0x3FFF;
+            return valid(new ImageHeader(MIME_WEBP, width, height, false));
+        } else if (chunk == 0x5650384C) { // "VP8L" 无损
+            if (reader.readByte() != 0x2F) {
+                return null;
+            }
+            int bits = reader.readByte() | (reader.readByte() << 8) | (reader.readByte() << 16)
+                    | (reader.readByte() << 24);
+            int width = (bits & 0x3FFF) + 1;
+            int height = ((bits >>> 14) & 0x3FFF) + 1;
+            boolean hasAlpha = ((bits >>> 28) & 0x1) != 0;
+            return valid(new ImageHeader(MIME_WEBP, width, height, hasAlpha));
+        } else if (chunk == 0x56503858) { // "VP8X" 扩展
+            int flags = reader.readByte();
+            reader.skip(3);
+            int width = (reader.readByte() | (reader.readByte() << 8) | (reader.readByte() << 16)) + 1;
+            int height = (reader.readByte() | (reader.readByte() << 8) | (reader.readByte() << 16)) + 1;
+            return valid(new ImageHeader(MIME_WEBP, width, height, (flags & 0x10) != 0));
+        }
+
+        return null;
+    }
+
+    private static ImageHeader parseGif(Reader reader) throws IOException {
+        if (reader.readByte() != 'F' || reader.readByte() != '8') {
+            return null;
+        }
+        reader.skip(2); // "7a" 或 "9a"
+        int width = reader.readShortLE();
+        int height = reader.readShortLE();
+        // GIF是否透明要看图形控制扩展，按可能透明处理
+        return valid(new ImageHeader(MIME_GIF, width, height, true));
+    }
+
+    private static ImageHeader valid(ImageHeader header) {
+        return header.width > 0 && header.height > 0 ? header : null;
+    }
+
+    /**
+     * 记录读取和跳过的字节数，超过MAX_SCAN_SIZE时停止
+     */
+    private static class Reader {
+        private final InputStream mStream;
+        private long mPosition;
+
+        Reader(InputStream stream) {
+            mStream = stream;
+        }
+
+        int readByte() throws IOException {
+            checkLimit(1);
+            int b = mStream.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            mPosition++;
+            return b;
+        }
+
+        int readShortBE() throws IOException {
+            return (readByte() << 8) | readByte();
+        }
+
+        int readShortLE() throws IOException {
+            return readByte() | (readByte() << 8);
+        }
+
+        int readInt() throws IOException {
+            return (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+        }
+
+        void skip(long count) throws IOException {
+            checkLimit(count);
+            long remaining = count;
+            while (remaining > 0) {
+                long skipped = mStream.skip(remaining);
+                if (skipped <= 0) {
+                    // 有的流skip返回0，退回逐字节读取
+                    if (mStream.read() < 0) {
+                        throw new EOFException();
+                    }
+                    skipped = 1;
+                }
+                remaining -= skipped;
+            }
+            mPosition += count;
+        }
+
+        private void checkLimit(long count) throws IOException {
+            if (count < 0 || mPosition + count > MAX_SCAN_SIZE) {
+                throw new EOFException();
+            }
+        }
+    }
+}
@@ -0,0 +1,391 @@
+/**
+ * ImageMetadataCache.java
+ */
+package com.subway.ditu.utils.image;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+import com.subway.ditu.utils.AtomicFile;
+import com.subway.ditu.utils.task.ScheduledTask;
+import com.subway.ditu.utils.task.TaskScheduler;
+
+/**
+ * 图片元数据缓存：尺寸、格式、是否透明、EXIF旋转角度、RGB_565是否会有色带和CRC32，按 名称+长度+修改时间 区分，
+ * 长度或修改时间变了就重新读取。
+ * 内存中按最近使用保留MAX_ENTRIES条，新读取的条目写入一个很小的二进制文件，重启后同一张图片不需要再读文件头和EXIF。
+ * 写文件在TaskScheduler的后台任务中进行，不持有查询用的锁，排队期间的多次修改只写一次。
+ * 旋转角度、色带和CRC32在第一次用到时才计算。读取时有文件I/O，需要在后台线程调用。
+ */
+public class ImageMetadataCache {
+    private static final String TAG = "ImageMetadataCache";
+    private static final boolean DEBUG = false;
+
+    // 文件格式变化时加一，旧的文件被忽略
+    private static final int FORMAT_VERSION = 2;
+
+    private static final int MAX_ENTRIES = 128;
+
+    private static final int CHECKSUM_BUFFER_SIZE = 16 * 1024;
+
+    // 还没有计算的旋转角度、色带和CRC32
+    private static final int UNKNOWN = -1;
+    private static final int BANDING_NO = 0;
+    private static final int BANDING_YES = 1;
+
+    private static class Metadata {
+        final long length;
+        final long modified;
+        final ImageHeaderParser.ImageHeader header;
+        int rotation = UNKNOWN;
+        int banding = UNKNOWN;
+        long checksum = UNKNOWN;
+
+        Metadata(long length, long modified, ImageHeaderParser.ImageHeader header) {
+            this.length = length;
+            this.modified = modified;
+            this.header = header;
+        }
+    }
+
+    private static ImageMetadataCache sInstance;
+
+    private File mFile;
+    private boolean mLoaded = false;
+    // 内存中有没写入文件的修改，以及是否已经提交了写文件的任务
+    private boolean mDirty = false;
+    private boolean mSavePending = false;
+    private int mSaveSequence = 0;
+    // 保证同一时间只有一个任务在写文件，后序列化的内容先写入时不再写旧的内容
+    private final Object mWriteLock = new Object();
+    private int mSnapshotVersion = 0;
+    private int mWrittenVersion = 0;
+
+    private final LinkedHashMap<String, Metadata> mEntries = new LinkedHashMap<String, Metadata>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Metadata> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    public static synchronized ImageMetadataCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new ImageMetadataCache();
+        }
+        return sInstance;
+    }
+
+    private ImageMetadataCache() {
+    }
+
+    /**
+     * 设置保存的文件，启动时调用，文件在第一次查询时读取。不设置时只缓存在内存中。
+     */
+    public synchronized void init(File file) {
+        if (file != null && !file.equals(mFile)) {
+            mFile = file;
+            mLoaded = false;
+        }
+    }
+
+    /**
+     * 图片的格式和尺寸，见ImageUtils.readHeader
+     *
+     * @return 不是图片时返回null
+     */
+    public ImageHeaderParser.ImageHeader getHeader(ImageSource source) {
+        Metadata metadata = getMetadata(source);
+        return metadata != null ? metadata.header : null;
+    }
+
+    /**
+     * EXIF中的旋转角度，只有本地的JPEG文件才读取EXIF
+     *
+     * @return 0、90、180、270
+     */
+    public int getRotation(ImageSource source) {
+        Metadata metadata = getMetadata(source);
+        if (metadata == null) {
+            return ExifHelper.ROTATION_0;
+        }
+
+        synchronized (this) {
+            if (metadata.rotation != UNKNOWN) {
+                return metadata.rotation;
+            }
+        }
+
+        int rotation = ExifHelper.ROTATION_0;
+        if (source.getFilePath() != null && ImageHeaderParser.MIME_JPEG.equals(metadata.header.mimeType)) {
+            rotation = ExifHelper.readRotation(source.getFilePath());
+        }
+        synchronized (this) {
+            metadata.rotation = rotation;
+            mDirty = true;
+        }
+        scheduleSave();
+        return rotation;
+    }
+
+    /**
+     * 解码为RGB_565时是否会出现明显的色带，需要抖动。第一次调用时由ImageUtils.checkBanding解码一张小图检查，
+     * 之后同一张图片直接返回记录的结果。
+     */
+    public boolean hasBandingRisk(ImageSource source) {
+        Metadata metadata = getMetadata(source);
+        if (metadata == null) {
+            return false;
+        }
+
+        synchronized (this) {
+            if (metadata.banding != UNKNOWN) {
+                return metadata.banding == BANDING_YES;
+            }
+        }
+
+        boolean banding = ImageUtils.checkBanding(source, metadata.header);
+        synchronized (this) {
+            metadata.banding = banding ? BANDING_YES : BANDING_NO;
+            mDirty = true;
+        }
+        scheduleSave();
+        return banding;
+    }
+
+    /**
+     * 整个文件的CRC32，需要读取全部数据
+     *
+     * @return 读取失败时返回-1
+     */
+    public long getChecksum(ImageSource source) {
+        Metadata metadata = getMetadata(source);
+        if (metadata == null) {
+            return computeChecksum(source);
+        }
+
+        synchronized (this) {
+            if (metadata.checksum != UNKNOWN) {
+                return metadata.checksum;
+            }
+        }
+
+        long checksum = computeChecksum(source);
+        if (checksum >= 0) {
+            synchronized (this) {
+                metadata.checksum = checksum;
+                mDirty = true;
+            }
+            scheduleSave();
+        }
+        return checksum;
+    }
+
+    private Metadata getMetadata(ImageSource source) {
+        if (source == null || !source.exists()) {
+            return null;
+        }
+
+        String key = source.getName();
+        long length = source.length();
+        long modified = source.lastModified();
+        synchronized (this) {
+            load();
+            Metadata metadata = mEntries.get(key);
+            if (metadata != null && metadata.length == length && metadata.modified == modified) {
+                return metadata;
+            }
+        }
+
+        // 读取文件头时不持有锁，其他图片的查询不用等待
+        ImageHeaderParser.ImageHeader header = ImageUtils.parseHeader(source);
+        if (header == null) {
+            return null;
+        }
+        Metadata metadata = new Metadata(length, modified, header);
+        synchronized (this) {
+            mEntries.put(key, metadata);
+            mDirty = true;
+        }
+        scheduleSave();
+        if (DEBUG) {
+            Log.d(TAG, "[[getMetadata]] " + key + " " + header);
+        }
+        return metadata;
+    }
+
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        if (mFile == null || !mFile.exists()) {
+            return;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != FORMAT_VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                long length = in.readLong();
+                long modified = in.readLong();
+                String mimeType = in.readUTF();
+                int width = in.readInt();
+                int height = in.readInt();
+                boolean hasAlpha = in.readBoolean();
+                Metadata metadata = new Metadata(length, modified, new ImageHeaderParser.ImageHeader(
+                        mimeType.length() > 0 ? mimeType : null, width, height, hasAlpha));
+                metadata.rotation = in.readInt();
+                metadata.banding = in.readInt();
+                metadata.checksum = in.readLong();
+                mEntries.put(key, metadata);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            mEntries.clear();
+        } finally {
+            try {
+                if (in != null) {
+                    in.close();
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 有修改时提交一个后台任务写文件，已经有任务在排队时不再提交
+     */
+    private void scheduleSave() {
+        int sequence;
+        synchronized (this) {
+            if (mFile == null || !mDirty || mSavePending) {
+                return;
+            }
+            mSavePending = true;
+            sequence = ++mSaveSequence;
+        }
+
+        // key不重复，正在写文件时新的修改也能再提交一次
+        TaskScheduler.getInstance().submit(
+                new ScheduledTask<Void>("metadata:save:" + sequence, TaskScheduler.PRIORITY_BACKGROUND, this) {
+
+                    @Override
+                    protected Void doInBackground() {
+                        save();
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * 持有锁时只把内容序列化到内存，写文件和fsync不持有锁，查询不用等待磁盘
+     */
+    private void save() {
+        File file;
+        byte[] data;
+        int version;
+        synchronized (this) {
+            mSavePending = false;
+            if (!mDirty || mFile == null) {
+                return;
+            }
+            file = mFile;
+            data = serialize();
+            version = ++mSnapshotVersion;
+            mDirty = false;
+        }
+        if (data == null) {
+            return;
+        }
+
+        synchronized (mWriteLock) {
+            if (version < mWrittenVersion) {
+                return;
+            }
+            mWrittenVersion = version;
+            AtomicFile atomicFile = new AtomicFile(file);
+            FileOutputStream out = null;
+            try {
+                out = atomicFile.startWrite();
+                out.write(data);
+                atomicFile.finishWrite(out);
+            } catch (Exception e) {
+                e.printStackTrace();
+                atomicFile.failWrite(out);
+            }
+        }
+    }
+
+    private byte[] serialize() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(mEntries.size());
+            for (Map.Entry<String, Metadata> entry : mEntries.entrySet()) {
+                Metadata metadata = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeLong(metadata.length);
+                out.writeLong(metadata.modified);
+                out.writeUTF(metadata.header.mimeType != null ? metadata.header.mimeType : "");
+                out.writeInt(metadata.header.width);
+                out.writeInt(metadata.header.height);
+                out.writeBoolean(metadata.header.hasAlpha);
+                out.writeInt(metadata.rotation);
+                out.writeInt(metadata.banding);
+                out.writeLong(metadata.checksum);
+            }
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    private static long computeChecksum(ImageSource source) {
+        InputStream is = null;
+        try {
+            is = source.open();
+            CRC32 crc = new CRC32();
+            byte[] buffer = new byte[CHECKSUM_BUFFER_SIZE];
+            int count;
+            while ((count = is.read(buffer)) > 0) {
+                crc.update(buffer, 0, count);
+            }
+            return crc.getValue();
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                if (is != null) {
+                    is.close();
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        return -1;
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ * ImageSource.java
+ */
+package com.subway.ditu.utils.image;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+
+/**
+ * 图片数据的来源：本地文件或者APK中的asset。asset直接从APK中解码，不需要先复制到文件系统。
+ */
+public abstract class ImageSource {
+
+    public static ImageSource fromFile(String fileFullPath) {
+        return new FileImageSource(new File(fileFullPath));
+    }
+
+    /**
+     * jpg、png等格式在APK中不压缩存放，以ACCESS_RANDOM打开时解码器直接读取映射到内存中的asset
+     */
+    public static ImageSource fromAsset(Context context, String assetName) {
+        return new AssetImageSource(context.getApplicationContext(), assetName);
+    }
+
+    /**
+     * 打开数据流，调用者负责关闭
+     */
+    public abstract InputStream open() throws IOException;
+
+    /**
+     * 本地文件的路径，asset返回null
+     */
+    public abstract String getFilePath();
+
+    public abstract boolean exists();
+
+    /**
+     * 数据的字节数，未知时返回0
+     */
+    public abstract long length();
+
+    /**
+     * 数据的修改时间，用来判断由它生成的缓存是否过期
+     */
+    public abstract long lastModified();
+
+    public abstract String getName();
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+
+    private static class FileImageSource extends ImageSource {
+        private final File mFile;
+
+        FileImageSource(File file) {
+            mFile = file;
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            return new FileInputStream(mFile);
+        }
+
+        @Override
+        public String getFilePath() {
+            return mFile.getAbsolutePath();
+        }
+
+        @Override
+        public boolean exists() {
+            return mFile.exists();
+        }
+
+        @Override
+        public long length() {
+            return mFile.length();
+        }
+
+        @Override
+        public long lastModified() {
+            return mFile.lastModified();
+        }
+
+        @Override
+        public String getName() {
+            return mFile.getAbsolutePath();
+        }
+    }
+
+    private static class AssetImageSource extends ImageSource {
+        private final Context mContext;
+        private final String mAssetName;
+        private long mLength = -1;
+
+        AssetImageSource(Context context, String assetName) {
+            mContext = context;
+            mAssetName = assetName;
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            return mContext.getAssets().open(mAssetName, AssetManager.ACCESS_RANDOM);
+        }
+
+        @Override
+        public String getFilePath() {
+            return null;
+        }
+
+        @Override
+        public boolean exists() {
+            return length() > 0;
+        }
+
+        @Override
+        public synchronized long length() {
+            if (mLength >= 0) {
+                return mLength;
+            }
+
+            mLength = 0;
+            AssetFileDescriptor afd = null;
+            try {
+                afd = mContext.getAssets().openFd(mAssetName);
+                mLength = afd.getLength();
+            } catch (IOException e) {
+                // 压缩存放的asset不能openFd，退回读取流的长度
+                InputStream is = null;
+                try {
+                    is = open();
+                    mLength = is.available();
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                } finally {
+                    try {
+                        if (is != null) {
+                            is.close();
+                        }
+                    } catch (IOException ex) {
+                        ex.printStackTrace();
+                    }
+                }
+            } finally {
+                try {
+                    if (afd != null) {
+                        afd.close();
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            return mLength;
+        }
+
+        @Override
+        public long lastModified() {
+            // asset随APK一起更新
+            return new File(mContext.getPackageCodePath()).lastModified();
+        }
+
+        @Override
+        public String getName() {
+            return "asset:" + mAssetName;
+        }
+    }
+}
@@ -1,14 +1,16 @@
 package com.subway.ditu.utils.image;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.Canvas;
-import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.PorterDuff.Mode;
 import android.graphics.PorterDuffXfermode;
@@ -17,15 +19,28 @@ import android.graphics.RectF;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.subway.ditu.utils.MemoryGovernor;
+
+/**
+ * 图片解码工具，所有加载方法都是同步的，需要放在TaskScheduler的任务中调用
+ */
 public class ImageUtils {
     private static final String TAG = "ImageUtils";
     private static final boolean DEBUG = false;
 
-    private static final int MAX_SIZE = 600 * 1024;
-
     private static final double CIRCLE_RATE = 0.5;
     
     private static final double ROUND_RATE = 0.6;
+
+    // 检查色带时解码的小图的最大边长
+    private static final int BANDING_SAMPLE_MAX_SIZE = 256;
+    // 相邻像素差值不超过这个值且不为0时认为是平滑渐变，RGB_565的红、蓝通道量化步长是8
+    private static final int BANDING_STEP = 6;
+    // 平滑渐变的相邻像素超过这个比例时RGB_565需要抖动
+    private static final float BANDING_RATIO = 0.25f;
+
+    // 读取文件头的缓冲，通常只需要前几百字节
+    private static final int HEADER_BUFFER_SIZE = 512;
     
     /**
      * 创建一个原型的图片
@@ -169,15 +184,17 @@ public class ImageUtils {
             return null;
         }
 
-        // try {
+        ImageSource source = ImageSource.fromFile(path);
+        ImageHeaderParser.ImageHeader header = readHeader(source);
+        if (header == null) {
+            return null;
+        }
+        // 只解码到不小于目标尺寸的最大采样率，再缩放到目标尺寸
+        boolean opaque = DecodePlanner.isOpaque(header);
+        DecodePlanner.Plan plan = DecodePlanner.fromHeader(header).setTargetSize(width, height).setFill(true)
+                .setOpaque(opaque).setDither(opaque && hasBandingRisk(source)).plan();
         BitmapFactory.Options opts = new BitmapFactory.Options();
-        // opts.inJustDecodeBounds = true;
-        // BitmapFactory.decodeFile(path, opts);
-        // int xScale = opts.outWidth / width;
-        // int yScale = opts.outHeight / height;
-        // int scale = xScale < yScale ? xScale : yScale;
-        // opts.inSampleSize = (scale == 0 ? 1 : scale);
-        // opts.inJustDecodeBounds = false;
+        plan.applyTo(opts);
         Bitmap bmp = BitmapFactory.decodeFile(path, opts);
         if (bmp != null) {
             Bitmap destBmp = Bitmap.createScaledBitmap(bmp, width, height, false);
@@ -228,23 +245,26 @@ public class ImageUtils {
         return false;
     }
 
+    /**
+     * 读取图片的尺寸和格式，结果放在outWidth、outHeight和outMimeType中
+     * 
+     * @param fileFullPath
+     * @return 不是图片时返回null
+     */
     public static BitmapFactory.Options getBitmapHeaderInfo(String fileFullPath) {
-        if (!TextUtils.isEmpty(fileFullPath)) {
-            try {
-                BitmapFactory.Options opt = new BitmapFactory.Options();
-                opt.inPurgeable = true;
-                opt.inJustDecodeBounds = true;
-
-                BitmapFactory.decodeFile(fileFullPath, opt);
-                if (opt.outWidth > 0 && opt.outHeight > 0) {
-                    return opt;
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
+        if (TextUtils.isEmpty(fileFullPath)) {
+            return null;
         }
 
-        return null;
+        ImageHeaderParser.ImageHeader header = readHeader(ImageSource.fromFile(fileFullPath));
+        if (header == null) {
+            return null;
+        }
+        BitmapFactory.Options opt = new BitmapFactory.Options();
+        opt.outWidth = header.width;
+        opt.outHeight = header.height;
+        opt.outMimeType = header.mimeType;
+        return opt;
     }
 
     public static boolean isBitmapData(byte[] data) {
@@ -252,7 +272,12 @@ public class ImageUtils {
             return false;
         }
 
+        if (ImageHeaderParser.parse(data, 0, data.length) != null) {
+            return true;
+        }
+
         try {
+            // 文件头解析不认识的格式(如BMP)交给解码器判断
             BitmapFactory.Options opt = new BitmapFactory.Options();
             opt.inJustDecodeBounds = true;
             BitmapFactory.decodeByteArray(data, 0, data.length, opt);
@@ -267,264 +292,465 @@ public class ImageUtils {
     }
 
     public static boolean isBitmapData(String fileFullPath) {
-        if (!TextUtils.isEmpty(fileFullPath)) {
-            File btFile = new File(fileFullPath);
-            if (!btFile.exists()) {
-                return false;
+        if (TextUtils.isEmpty(fileFullPath) || !new File(fileFullPath).exists()) {
+            return false;
+        }
+
+        return readHeader(ImageSource.fromFile(fileFullPath)) != null;
+    }
+
+    /**
+     * 读取图片的格式、尺寸和是否可能透明。结果按文件的长度和修改时间缓存在ImageMetadataCache中，同一张图片再次加载时不读文件头。
+     * 
+     * @param source
+     * @return 不是图片时返回null
+     */
+    public static ImageHeaderParser.ImageHeader readHeader(ImageSource source) {
+        return ImageMetadataCache.getInstance().getHeader(source);
+    }
+
+    /**
+     * 先用ImageHeaderParser只读文件头，不认识的格式再退回BitmapFactory的inJustDecodeBounds
+     */
+    static ImageHeaderParser.ImageHeader parseHeader(ImageSource source) {
+        if (source == null) {
+            return null;
+        }
+
+        InputStream is = null;
+        try {
+            is = new BufferedInputStream(source.open(), HEADER_BUFFER_SIZE);
+            ImageHeaderParser.ImageHeader header = ImageHeaderParser.parse(is);
+            if (header != null) {
+                if (DEBUG) {
+                    Log.d(TAG, "[[parseHeader]] " + source + " " + header);
+                }
+                return header;
             }
-            
-            try {
-                BitmapFactory.Options opt = new BitmapFactory.Options();
-                opt.inPurgeable = true;
-                opt.inJustDecodeBounds = true;
+            is.close();
+            is = null;
 
-                BitmapFactory.decodeFile(fileFullPath, opt);
-                if (opt.outWidth > 0 && opt.outHeight > 0) {
-                    return true;
+            BitmapFactory.Options opt = new BitmapFactory.Options();
+            opt.inJustDecodeBounds = true;
+            is = source.open();
+            BitmapFactory.decodeStream(is, null, opt);
+            if (opt.outWidth > 0 && opt.outHeight > 0) {
+                // 不知道格式是否带透明通道，除了JPEG都按可能透明处理
+                return new ImageHeaderParser.ImageHeader(opt.outMimeType, opt.outWidth, opt.outHeight,
+                        !ImageHeaderParser.MIME_JPEG.equals(opt.outMimeType));
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                if (is != null) {
+                    is.close();
                 }
             } catch (Exception e) {
                 e.printStackTrace();
             }
         }
 
-        return false;
+        return null;
     }
 
     /**
-     * 根据图片的全路径来获取一张图片，在获取图片的时候会对图片做就地压缩，同时会将图片 的旋转角度准换成0度。
+     * 根据图片的全路径来获取一张图片，在获取图片的时候会对图片做就地压缩。图片不做旋转，需要时由调用者按
+     * ExifHelper.getRotationFromExif的角度显示(TouchImageView.setImageBitmap(bitmap, rotation))。
      * 
      * @param fileFullPath
      * @return
      */
-    public static Bitmap loadBitmapWithSizeOrientation(String fileFullPath) {
+    public static Bitmap loadBitmapWithSize(String fileFullPath) {
         if (TextUtils.isEmpty(fileFullPath)) {
             return null;
         }
-        return loadBitmapWithSizeCheck(new File(fileFullPath), ExifHelper.getRotationFromExif(fileFullPath));
-    }
-
-    public static Bitmap loadBitmapWithSizeCheck(File bitmapFile, int orientataion) {
-        return loadBitmapWithSizeCheckAndBitmapReuse(bitmapFile, null, orientataion);
+        return loadBitmapWithSizeCheck(new File(fileFullPath));
     }
 
     public static Bitmap loadBitmapWithSizeCheck(File bitmapFile) {
-        return loadBitmapWithSizeCheckAndBitmapReuse(bitmapFile, null, 0);
+        return loadBitmapWithSizeCheckAndBitmapReuse(bitmapFile, null);
     }
 
-    public static Bitmap loadBitmapWithSizeCheckAndBitmapReuse(File bitmapFile, Bitmap reuseBt, int orientataion) {
-        Bitmap bmp = null;
-        FileInputStream fis = null;
-
+    public static Bitmap loadBitmapWithSizeCheckAndBitmapReuse(File bitmapFile, Bitmap reuseBt) {
         try {
-            bitmapFile.setLastModified(System.currentTimeMillis());
-
-            BitmapFactory.Options opt = new BitmapFactory.Options();
-            opt.inPurgeable = true;
-            opt.inJustDecodeBounds = true;
-
-            BitmapFactory.decodeFile(bitmapFile.getAbsolutePath(), opt);
-            int width = opt.outWidth;
-            int height = opt.outHeight;
-
-            BitmapFactory.Options newOpt = new BitmapFactory.Options();
-            long fileSize = bitmapFile.length();
-            if (fileSize <= MAX_SIZE) {
-                newOpt.inSampleSize = 1;
-            } else if (fileSize <= MAX_SIZE * 4) {
-                newOpt.inSampleSize = 2;
-            } else {
-                long times = fileSize / MAX_SIZE;
-                newOpt.inSampleSize = (int) (Math.log(times) / Math.log(2.0)) + 1;
+            ImageSource source = ImageSource.fromFile(bitmapFile.getAbsolutePath());
+            ImageHeaderParser.ImageHeader header = readHeader(source);
+            if (header == null) {
+                return null;
             }
-
-
-            newOpt.inTempStorage = new byte[16 * 1024];
-            newOpt.inScaled = true;
-            newOpt.inPurgeable = true;
-            newOpt.inInputShareable = true;
-
-            boolean reusedBt = false;
-            if (reuseBt != null && !reuseBt.isRecycled() && width == reuseBt.getWidth()
-                    && height == reuseBt.getHeight()) {
-                // need to check target sdk version
-                reusedBt = true;
-                newOpt.inBitmap = reuseBt;
+            boolean opaque = DecodePlanner.isOpaque(header);
+            DecodePlanner.Plan plan = DecodePlanner.fromHeader(header).setOpaque(opaque)
+                    .setDither(opaque && hasBandingRisk(source)).plan();
+            if (plan == null) {
+                return null;
             }
+            return decodeWithRetry(source, plan, opaque, reuseBt);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
 
-            newOpt.outHeight = height;
-            newOpt.outWidth = width;
-            fis = new FileInputStream(bitmapFile);
+    /**
+     * 解码一张已知尺寸的小图（如地图分块），优先复用池中同尺寸的Bitmap，解码结果可以再放回池中
+     * 
+     * @param fileFullPath
+     * @param width 预期宽度
+     * @param height 预期高度
+     * @param pool 可以为null
+     * @return
+     */
+    public static Bitmap loadBitmapWithReuse(String fileFullPath, int width, int height, BitmapPool pool) {
+        return loadBitmapWithReuse(fileFullPath, width, height, Bitmap.Config.ARGB_8888, false, pool);
+    }
 
-            long curTime = System.currentTimeMillis();
-            bmp = BitmapFactory.decodeStream(fis, null, newOpt);
-            if (DEBUG) {
-                long cost = System.currentTimeMillis() - curTime;
-            }
+    /**
+     * 解码一张已知尺寸的小图，指定像素格式，地图分块这样不透明的图片用RGB_565
+     * 
+     * @param fileFullPath
+     * @param width 预期宽度
+     * @param height 预期高度
+     * @param config
+     * @param dither RGB_565时是否抖动
+     * @param pool 可以为null
+     * @return
+     */
+    public static Bitmap loadBitmapWithReuse(String fileFullPath, int width, int height, Bitmap.Config config,
+            boolean dither, BitmapPool pool) {
+        if (TextUtils.isEmpty(fileFullPath)) {
+            return null;
+        }
 
-            if (orientataion != 0 && bmp != null) {
-                Matrix matrix = new Matrix();
-                matrix.postRotate((float) orientataion);
-                Bitmap tmp = Bitmap.createBitmap(bmp, 0, 0, bmp.getWidth(), bmp.getHeight(), matrix, true);
-                if (tmp != null) {
-                    bmp.recycle();
-                    bmp = null;
-                    bmp = tmp;
+        try {
+            BitmapFactory.Options opt = new BitmapFactory.Options();
+            opt.inPreferredConfig = config;
+            opt.inDither = dither;
+            Bitmap reuseBt = null;
+            if (BitmapPool.isSupported()) {
+                opt.inMutable = true;
+                if (pool != null) {
+                    reuseBt = pool.get(width, height, config);
+                    opt.inBitmap = reuseBt;
                 }
             }
 
+            Bitmap bmp = BitmapFactory.decodeFile(fileFullPath, opt);
+            if (bmp == null && reuseBt != null) {
+                // 实际尺寸与预期不一致，不复用再解码一次
+                pool.put(reuseBt);
+                opt.inBitmap = null;
+                bmp = BitmapFactory.decodeFile(fileFullPath, opt);
+            }
             return bmp;
         } catch (Exception e) {
             e.printStackTrace();
         } catch (OutOfMemoryError e) {
             e.printStackTrace();
-        } finally {
-            try {
-                if (fis != null) {
-                    fis.close();
-                    fis = null;
-                }
-            } catch (Exception ex) {
-                ex.printStackTrace();
-            }
+            MemoryGovernor.getInstance().onOutOfMemory();
         }
+
         return null;
     }
 
     /**
-     * 根据图片的全路径来获取一张图片，在获取图片的时候会对图片做就地压缩，同时会将图片 的旋转角度准换成0度。
+     * 根据图片的全路径来获取一张图片，按内存大小做就地压缩。图片不做旋转，需要时由调用者按ExifHelper.getRotationFromExif的角度显示。
      * 
      * @param fileFullPath
      * @return
      */
-    public static Bitmap loadBitmapWithMemSizeOrientation(String fileFullPath, int memSize) {
+    public static Bitmap loadBitmapWithMemSize(String fileFullPath, int memSize) {
         if (TextUtils.isEmpty(fileFullPath)) {
             return null;
         }
-        int maxsize = MAX_SIZE;
-        if (memSize < 64) {
-            maxsize = (int) MAX_SIZE * memSize * 2 / 64 / 3;
-        }
-        return loadBitmapWithMemSizeCheck(new File(fileFullPath), ExifHelper.getRotationFromExif(fileFullPath),
-                maxsize, 0);
+        return loadBitmapWithMemSizeCheck(ImageSource.fromFile(fileFullPath), memSize, 0, 0, 1.0f, null);
     }
 
-    private static Bitmap loadBitmapWithMemSizeCheck(File bitmapFile, int orientataion, int maxsize, int errortimes) {
-        Bitmap bmp = null;
-        FileInputStream fis = null;
+    /**
+     * 从文件或者asset加载图片，按内存大小做就地压缩。asset没有EXIF旋转信息。
+     * 
+     * @param source
+     * @param memSize 应用可用内存，MB
+     * @return
+     */
+    public static Bitmap loadBitmapWithMemSize(ImageSource source, int memSize) {
+        return loadBitmapWithMemSize(source, memSize, 0, 0, 1.0f);
+    }
 
-        try {
-            bitmapFile.setLastModified(System.currentTimeMillis());
+    /**
+     * 从文件或者asset加载图片，只解码显示需要的像素：按适应View显示、放大到maxZoom时仍然清晰，同时不超过内存预算。
+     * 
+     * @param source
+     * @param memSize 应用可用内存，MB
+     * @param viewWidth 显示的View宽度，未知时为0
+     * @param viewHeight 显示的View高度，未知时为0
+     * @param maxZoom 相对于适应View的最大放大倍数
+     * @return
+     */
+    public static Bitmap loadBitmapWithMemSize(ImageSource source, int memSize, int viewWidth, int viewHeight,
+            float maxZoom) {
+        return loadBitmapWithMemSize(source, memSize, viewWidth, viewHeight, maxZoom, null);
+    }
 
-            BitmapFactory.Options opt = new BitmapFactory.Options();
-            opt.inPurgeable = true;
-            opt.inJustDecodeBounds = true;
+    /**
+     * 同上，内存不足到加大采样率也解码失败时，只解码原图中心的区域
+     * 
+     * @param outRegion 只解码了一部分时设置为原图上的区域，解码整张图时为空；为null时不允许只解码一部分
+     * @return
+     */
+    public static Bitmap loadBitmapWithMemSize(ImageSource source, int memSize, int viewWidth, int viewHeight,
+            float maxZoom, Rect outRegion) {
+        if (source == null) {
+            return null;
+        }
+        return loadBitmapWithMemSizeCheck(source, memSize, viewWidth, viewHeight, maxZoom, outRegion);
+    }
 
-            BitmapFactory.decodeFile(bitmapFile.getAbsolutePath(), opt);
-            int width = opt.outWidth;
-            int height = opt.outHeight;
-            // if (DEBUG) {
-            // Log.d(TAG, "Information_source : width =  " + width +
-            // " height = " + height + "size = " + bitmapFile.length()/1024 +
-            // "memory size = " + memSize);
-            // }
-            BitmapFactory.Options newOpt = new BitmapFactory.Options();
-            long fileSize = bitmapFile.length();
-            if (fileSize <= maxsize) {
-                newOpt.inSampleSize = 1;
-            } else if (fileSize <= maxsize * 4) {
-                newOpt.inSampleSize = 2;
-            } else {
-                long times = fileSize / maxsize;
-                newOpt.inSampleSize = (int) (Math.log(times) / Math.log(2.0)) + 1;
-            }
-            // 在手机内存较小情况下，若图像需要翻转，则继续压缩图片
-            if (orientataion != 0 && maxsize < MAX_SIZE) {
-                newOpt.inSampleSize = newOpt.inSampleSize * 2;
+    private static Bitmap loadBitmapWithMemSizeCheck(ImageSource source, int memSize, int viewWidth, int viewHeight,
+            float maxZoom, Rect outRegion) {
+        try {
+            ImageHeaderParser.ImageHeader header = readHeader(source);
+            if (header == null) {
+                return null;
             }
-            if (errortimes == 1) {
-                int scale = (int) (Math.log(newOpt.inSampleSize) / Math.log(2.0)) + 1;
-                scale = (int) Math.scalb(1, scale);
-                newOpt.inSampleSize = scale;
+
+            // 采样率由真实尺寸、显示大小和内存预算决定，不透明的图片解码为RGB_565
+            boolean opaque = DecodePlanner.isOpaque(header);
+            DecodePlanner.Plan plan = DecodePlanner.fromHeader(header).setTargetSize(viewWidth, viewHeight)
+                    .setMaxZoom(maxZoom).setMemoryClass(memSize).setOpaque(opaque)
+                    .setDither(opaque && hasBandingRisk(source)).setRegionFallback(outRegion != null).plan();
+            if (plan == null) {
+                return null;
             }
-            if (DEBUG) {
-                Log.d(TAG, "dest insamplesize = " + newOpt.inSampleSize);
+            Bitmap bmp = decodeWithRetry(source, plan, opaque, null);
+            if (bmp != null && outRegion != null) {
+                if (plan.isPartial()) {
+                    outRegion.set(plan.region);
+                } else {
+                    outRegion.setEmpty();
+                }
             }
+            return bmp;
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
 
-            // rest the byte
-            newOpt.inScaled = true;
-            newOpt.inPurgeable = true;
-            newOpt.inInputShareable = true;
-
-            // if (width == 0 || height == 0 ||
-            // Environment.DEVICE_INFO.screenWidth == 0
-            // || Environment.DEVICE_INFO.screenHeight == 0) {
-            // return null;
-            // }
-            //
-            // float scale = (float) ((Environment.DEVICE_INFO.screenWidth *
-            // 1.0) / width);
-            // if (scale > 1.0) {
-            // scale = (float) 1.0;
-            // }
-            // newOpt.outHeight = (int) (height * scale);
-            // newOpt.outWidth = (int) (width * scale);
-
-            newOpt.outHeight = height;
-            newOpt.outWidth = width;
-            fis = new FileInputStream(bitmapFile);
-            bmp = BitmapFactory.decodeStream(fis, null, newOpt);
-
-            // if (DEBUG) {
-            // Config.LOGD("++++++++ [[loadBitmapWithSizeCheck]] +++++++++++\n");
-            // Config.LOGD("      load bit info : { bmp = " + bmp + " width = "
-            // + bmp.getWidth()
-            // + " height = " + bmp.getHeight() + " opt size, width = " +
-            // newOpt.outWidth
-            // + " height = " + newOpt.outHeight
-            // + "  scale = " + scale);
-            // Config.LOGD("\n");
-            // }
-
-            if (orientataion != 0 && bmp != null) {
-                Matrix matrix = new Matrix();
-                matrix.postRotate((float) orientataion);
-                Bitmap tmp = Bitmap.createBitmap(bmp, 0, 0, bmp.getWidth(), bmp.getHeight(), matrix, true);
-                if (tmp != null) {
-                    bmp.recycle();
-                    bmp = null;
-                    bmp = tmp;
+        return null;
+    }
+
+    /**
+     * 按方案解码整张图，方案只包含原图的一部分时只解码这个区域。内存不足时通知MemoryGovernor，按它给出的顺序换更省内存的方案重试，直到成功或者没有方案可试。
+     * 
+     * @param source
+     * @param plan 会被修改为最终使用的方案
+     * @param opaque 图片没有透明通道
+     * @param reuseBt 尺寸和格式与方案完全一致时解码到这个Bitmap中，可以为null
+     * @return
+     */
+    private static Bitmap decodeWithRetry(ImageSource source, DecodePlanner.Plan plan, boolean opaque,
+            Bitmap reuseBt) {
+        MemoryGovernor governor = MemoryGovernor.getInstance();
+        for (int attempt = 1;; attempt++) {
+            InputStream is = null;
+            try {
+                BitmapFactory.Options opt = new BitmapFactory.Options();
+                plan.applyTo(opt);
+                opt.inTempStorage = new byte[16 * 1024];
+                opt.inScaled = true;
+                opt.inPurgeable = true;
+                opt.inInputShareable = true;
+                if (reuseBt != null && !reuseBt.isRecycled() && plan.sampleSize == 1 && !plan.isPartial()
+                        && reuseBt.getWidth() == plan.getWidth() && reuseBt.getHeight() == plan.getHeight()
+                        && reuseBt.getConfig() == plan.config && BitmapPool.isSupported()) {
+                    // HONEYCOMB以上才支持inBitmap，且要求不做采样、尺寸完全一致
+                    opt.inBitmap = reuseBt;
+                    opt.inMutable = true;
+                }
+
+                long curTime = System.currentTimeMillis();
+                Bitmap bmp;
+                if (plan.isPartial()) {
+                    bmp = decodeRegion(source, plan.region, opt);
+                } else {
+                    is = source.open();
+                    bmp = BitmapFactory.decodeStream(is, null, opt);
+                }
+                if (DEBUG) {
+                    Log.d(TAG, "[[decodeWithRetry]] " + plan + " attempt = " + attempt + " cost = "
+                            + (System.currentTimeMillis() - curTime) + "ms");
+                }
+                return bmp;
+            } catch (Exception e) {
+                e.printStackTrace();
+                return null;
+            } catch (OutOfMemoryError e) {
+                e.printStackTrace();
+                governor.onOutOfMemory();
+                if (!governor.nextRetry(plan, attempt, opaque)) {
+                    return null;
+                }
+            } finally {
+                try {
+                    if (is != null) {
+                        is.close();
+                    }
+                } catch (Exception ex) {
+                    ex.printStackTrace();
                 }
             }
+        }
+    }
 
-            return bmp;
+    /**
+     * 用BitmapRegionDecoder解码原图的一部分，本地文件按路径打开，asset直接把流交给解码器
+     */
+    private static Bitmap decodeRegion(ImageSource source, Rect region, BitmapFactory.Options opt)
+            throws IOException {
+        InputStream is = null;
+        BitmapRegionDecoder decoder = null;
+        try {
+            String path = source.getFilePath();
+            if (path != null) {
+                decoder = BitmapRegionDecoder.newInstance(path, false);
+            } else {
+                is = source.open();
+                decoder = BitmapRegionDecoder.newInstance(is, false);
+            }
+            return decoder != null ? decoder.decodeRegion(region, opt) : null;
+        } finally {
+            if (decoder != null) {
+                decoder.recycle();
+            }
+            if (is != null) {
+                is.close();
+            }
+        }
+    }
+
+    /**
+     * 解码为RGB_565时是否需要抖动，结果按原图缓存在ImageMetadataCache中，同一张图片只检查一次
+     * 
+     * @param source
+     * @return
+     */
+    public static boolean hasBandingRisk(ImageSource source) {
+        return ImageMetadataCache.getInstance().hasBandingRisk(source);
+    }
+
+    /**
+     * 用一张ARGB_8888的小图检查解码为RGB_565时是否会出现明显的色带
+     * 
+     * @param source
+     * @param header readHeader的结果
+     * @return 有大面积平滑渐变时返回true
+     */
+    public static boolean checkBanding(ImageSource source, ImageHeaderParser.ImageHeader header) {
+        int sampleSize = 1;
+        while (header.width / sampleSize > BANDING_SAMPLE_MAX_SIZE
+                || header.height / sampleSize > BANDING_SAMPLE_MAX_SIZE) {
+            sampleSize *= 2;
+        }
+
+        InputStream is = null;
+        Bitmap sample = null;
+        try {
+            BitmapFactory.Options opt = new BitmapFactory.Options();
+            opt.inSampleSize = sampleSize;
+            opt.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            is = source.open();
+            sample = BitmapFactory.decodeStream(is, null, opt);
+            return sample != null && hasBandingRisk(sample);
         } catch (Exception e) {
             e.printStackTrace();
         } catch (OutOfMemoryError e) {
             e.printStackTrace();
-            if (errortimes == 1) {
-                return null;
-            }
         } finally {
             try {
-                if (fis != null) {
-                    fis.close();
-                    fis = null;
+                if (is != null) {
+                    is.close();
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            if (sample != null) {
+                sample.recycle();
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * 统计横向相邻像素的差值：差值为0是纯色区域，差值很大是线条和文字，差值不为0但小于RGB_565量化步长的是平滑渐变，
+     * 渐变占比高时RGB_565会出现色带。
+     * 
+     * @param bitmap ARGB_8888
+     * @return
+     */
+    public static boolean hasBandingRisk(Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        if (width < 2 || height < 1) {
+            return false;
+        }
+
+        int[] row = new int[width];
+        int smooth = 0;
+        int total = 0;
+        for (int y = 0; y < height; y++) {
+            bitmap.getPixels(row, 0, width, 0, y, width, 1);
+            for (int x = 1; x < width; x++) {
+                int a = row[x - 1];
+                int b = row[x];
+                int diff = Math.max(Math.abs(((a >> 16) & 0xff) - ((b >> 16) & 0xff)),
+                        Math.max(Math.abs(((a >> 8) & 0xff) - ((b >> 8) & 0xff)), Math.abs((a & 0xff) - (b & 0xff))));
+                if (diff > 0 && diff <= BANDING_STEP) {
+                    smooth++;
                 }
-            } catch (Exception ex) {
-                ex.printStackTrace();
+                total++;
             }
         }
 
-        return loadBitmapWithMemSizeCheck(bitmapFile, orientataion, maxsize, 1);
+        if (DEBUG) {
+            Log.d(TAG, "[[hasBandingRisk]] smooth = " + smooth + " total = " + total);
+        }
+        return smooth > total * BANDING_RATIO;
+    }
+
+    /**
+     * 把不透明的ARGB_8888图片转换成RGB_565，内存减半。通过Canvas绘制，可以抖动。原图会被回收。
+     * 
+     * @param src
+     * @param dither
+     * @return 失败时返回原图
+     */
+    public static Bitmap toRgb565(Bitmap src, boolean dither) {
+        if (src == null || src.isRecycled() || src.getConfig() == Bitmap.Config.RGB_565) {
+            return src;
+        }
+
+        try {
+            Bitmap dst = Bitmap.createBitmap(src.getWidth(), src.getHeight(), Bitmap.Config.RGB_565);
+            Paint paint = new Paint();
+            paint.setDither(dither);
+            new Canvas(dst).drawBitmap(src, 0, 0, paint);
+            src.recycle();
+            return dst;
+        } catch (Exception e) {
+            e.printStackTrace();
+        } catch (OutOfMemoryError e) {
+            e.printStackTrace();
+            MemoryGovernor.getInstance().onOutOfMemory();
+        }
+
+        return src;
     }
 
     public static void printBitmapInfo(String filePath) {
-        BitmapFactory.Options opt = new BitmapFactory.Options();
-        opt.inPurgeable = true;
-        opt.inJustDecodeBounds = true;
-        BitmapFactory.decodeFile(filePath, opt);
-        int width = opt.outWidth;
-        int height = opt.outHeight;
+        if (TextUtils.isEmpty(filePath)) {
+            return;
+        }
+        Log.d(TAG, "[[printBitmapInfo]] " + filePath + " " + readHeader(ImageSource.fromFile(filePath)));
     }
 
 }
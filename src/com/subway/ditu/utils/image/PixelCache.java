@@ -0,0 +1,172 @@
+/**
+ * PixelCache.java
+ */
+package com.subway.ditu.utils.image;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import com.subway.ditu.utils.AtomicFile;
+
+/**
+ * 解码后的原始像素缓存。第一次解码后把像素按Bitmap的内存格式写入文件，以后把文件映射到内存直接拷贝进Bitmap，不再经过JPEG解码。
+ *
+ * <pre>
+ * 文件头 HEADER_SIZE 字节：magic, version, width, height, config, rowBytes, sourceLength, sourceModified
+ * 之后是 rowBytes * height 字节的像素
+ * </pre>
+ */
+public class PixelCache {
+    private static final String TAG = "PixelCache";
+    private static final boolean DEBUG = false;
+
+    private static final int MAGIC = 0x52505831; // "RPX1"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 48;
+
+    private static final int CONFIG_RGB_565 = 1;
+    private static final int CONFIG_ARGB_8888 = 2;
+
+    /**
+     * 读取缓存的像素
+     *
+     * @param file 缓存文件
+     * @param source 生成缓存的原图，长度或修改时间不一致时缓存无效；为null时不检查
+     * @return 缓存不存在或者无效时返回null
+     */
+    public static Bitmap read(File file, ImageSource source) {
+        if (file == null || !file.exists() || file.length() < HEADER_SIZE) {
+            return null;
+        }
+
+        long curTime = System.currentTimeMillis();
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.BIG_ENDIAN);
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+            int width = buffer.getInt();
+            int height = buffer.getInt();
+            Bitmap.Config config = toConfig(buffer.getInt());
+            int rowBytes = buffer.getInt();
+            long sourceLength = buffer.getLong();
+            long sourceModified = buffer.getLong();
+            if (config == null || width <= 0 || height <= 0
+                    || (long) rowBytes * height != channel.size() - HEADER_SIZE) {
+                return null;
+            }
+            if (source != null && (sourceLength != source.length() || sourceModified != source.lastModified())) {
+                return null;
+            }
+
+            Bitmap bitmap = Bitmap.createBitmap(width, height, config);
+            if (bitmap.getRowBytes() != rowBytes) {
+                bitmap.recycle();
+                return null;
+            }
+            buffer.position(HEADER_SIZE);
+            bitmap.copyPixelsFromBuffer(buffer.slice());
+
+            if (DEBUG) {
+                Log.d(TAG, "[[read]] " + file.getName() + " " + width + "x" + height + " cost = "
+                        + (System.currentTimeMillis() - curTime) + "ms");
+            }
+            return bitmap;
+        } catch (Exception e) {
+            e.printStackTrace();
+        } catch (OutOfMemoryError e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                if (raf != null) {
+                    raf.close();
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * 把Bitmap的像素写入缓存文件，通过AtomicFile写入，中途失败不会留下不完整的缓存
+     *
+     * @param file 缓存文件
+     * @param bitmap 只支持RGB_565和ARGB_8888
+     * @param source 生成这个Bitmap的原图，可以为null
+     * @return
+     */
+    public static boolean write(File file, Bitmap bitmap, ImageSource source) {
+        if (file == null || bitmap == null || bitmap.isRecycled()) {
+            return false;
+        }
+        int config = fromConfig(bitmap.getConfig());
+        if (config == 0) {
+            return false;
+        }
+
+        AtomicFile atomicFile = new AtomicFile(file);
+        int rowBytes = bitmap.getRowBytes();
+        long size = HEADER_SIZE + (long) rowBytes * bitmap.getHeight();
+        RandomAccessFile raf = null;
+        try {
+            raf = atomicFile.startWriteRandomAccess();
+            raf.setLength(size);
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(ByteOrder.BIG_ENDIAN);
+
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(bitmap.getWidth());
+            buffer.putInt(bitmap.getHeight());
+            buffer.putInt(config);
+            buffer.putInt(rowBytes);
+            buffer.putLong(source != null ? source.length() : 0);
+            buffer.putLong(source != null ? source.lastModified() : 0);
+
+            buffer.position(HEADER_SIZE);
+            ByteBuffer pixels = buffer.slice();
+            bitmap.copyPixelsToBuffer(pixels);
+            buffer.force();
+            return atomicFile.finishWrite(raf);
+        } catch (Exception e) {
+            e.printStackTrace();
+            atomicFile.failWrite(raf);
+        }
+
+        return false;
+    }
+
+    private static Bitmap.Config toConfig(int config) {
+        switch (config) {
+        case CONFIG_RGB_565:
+            return Bitmap.Config.RGB_565;
+        case CONFIG_ARGB_8888:
+            return Bitmap.Config.ARGB_8888;
+        }
+        return null;
+    }
+
+    private static int fromConfig(Bitmap.Config config) {
+        if (config == Bitmap.Config.RGB_565) {
+            return CONFIG_RGB_565;
+        } else if (config == Bitmap.Config.ARGB_8888) {
+            return CONFIG_ARGB_8888;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * ScheduledTask.java
+ */
+package com.subway.ditu.utils.task;
+
+/**
+ * 提交给TaskScheduler的后台任务。相同key的任务同一时间只会有一个在排队或执行， 优先级高的先执行，优先级相同时先提交的先执行。
+ * 
+ * @param <Result>
+ */
+public abstract class ScheduledTask<Result> implements Runnable, Comparable<ScheduledTask<?>> {
+
+    static final int STATE_PENDING = 0;
+    static final int STATE_RUNNING = 1;
+    static final int STATE_FINISHED = 2;
+    static final int STATE_CANCELLED = 3;
+
+    private final String mKey;
+    private final Object mOwner;
+
+    volatile int mPriority;
+    volatile int mState = STATE_PENDING;
+    long mSequence;
+
+    TaskScheduler mScheduler;
+
+    /**
+     * @param key 去重用的key
+     * @param priority TaskScheduler.PRIORITY_*
+     * @param owner 所属对象，可以通过TaskScheduler.cancelAll一次取消，可以为null
+     */
+    public ScheduledTask(String key, int priority, Object owner) {
+        mKey = key;
+        mPriority = priority;
+        mOwner = owner;
+    }
+
+    public String getKey() {
+        return mKey;
+    }
+
+    public Object getOwner() {
+        return mOwner;
+    }
+
+    public int getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * 取消这个任务
+     */
+    public boolean cancel() {
+        TaskScheduler scheduler = mScheduler;
+        return scheduler != null && scheduler.cancel(this);
+    }
+
+    public boolean isCancelled() {
+        return mState == STATE_CANCELLED;
+    }
+
+    /**
+     * 在工作线程执行，耗时较长的任务应该检查isCancelled()尽早返回
+     */
+    protected abstract Result doInBackground();
+
+    /**
+     * 在主线程执行，任务被取消时不会调用
+     */
+    protected void onPostExecute(Result result) {
+    }
+
+    /**
+     * 在主线程执行，任务执行中途被取消时用来释放结果，result可能为null
+     */
+    protected void onCancelled(Result result) {
+    }
+
+    @Override
+    public final void run() {
+        if (!mScheduler.onTaskStarted(this)) {
+            return;
+        }
+
+        Result result = null;
+        try {
+            result = doInBackground();
+        } catch (Exception e) {
+            e.printStackTrace();
+        } catch (OutOfMemoryError e) {
+            e.printStackTrace();
+        }
+        mScheduler.onTaskFinished(this, result);
+    }
+
+    @Override
+    public int compareTo(ScheduledTask<?> another) {
+        if (mPriority != another.mPriority) {
+            return mPriority > another.mPriority ? -1 : 1;
+        }
+        return mSequence < another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+    }
+
+    @Override
+    public String toString() {
+        return "ScheduledTask [key=" + mKey + ", priority=" + mPriority + ", state=" + mState + "]";
+    }
+}
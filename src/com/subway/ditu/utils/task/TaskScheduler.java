@@ -0,0 +1,199 @@
+/**
+ * TaskScheduler.java
+ */
+package com.subway.ditu.utils.task;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * 图片解码和文件IO的统一调度：固定大小的线程池、按优先级排队、按key去重、可取消。 结果回调在主线程执行。
+ */
+public class TaskScheduler {
+    private static final String TAG = "TaskScheduler";
+    private static final boolean DEBUG = false;
+
+    // 优先级，数值越大越先执行
+    public static final int PRIORITY_BACKGROUND = 0;
+    public static final int PRIORITY_PREFETCH = 10;
+    public static final int PRIORITY_VISIBLE = 20;
+    public static final int PRIORITY_IMMEDIATE = 30;
+
+    private static final int MAX_POOL_SIZE = 3;
+
+    private static TaskScheduler sInstance;
+
+    private final ThreadPoolExecutor mExecutor;
+
+    // 排队和执行中的任务，由this保护
+    private final HashMap<String, ScheduledTask<?>> mTasks = new HashMap<String, ScheduledTask<?>>();
+    private long mSequence;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    public static synchronized TaskScheduler getInstance() {
+        if (sInstance == null) {
+            sInstance = new TaskScheduler();
+        }
+        return sInstance;
+    }
+
+    private TaskScheduler() {
+        int poolSize = Math.max(2, Math.min(MAX_POOL_SIZE, Runtime.getRuntime().availableProcessors()));
+        mExecutor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private int mCount;
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, "scheduler-" + mCount++);
+                    }
+                });
+    }
+
+    /**
+     * 提交任务。如果相同key的任务已经在排队或执行，不会重复提交，排队中的任务优先级会提升到两者中较高的。
+     * 
+     * @return 实际会执行的任务
+     */
+    public synchronized ScheduledTask<?> submit(ScheduledTask<?> task) {
+        ScheduledTask<?> existing = mTasks.get(task.getKey());
+        if (existing != null && !existing.isCancelled()) {
+            if (task.mPriority > existing.mPriority) {
+                setPriority(existing, task.mPriority);
+            }
+            return existing;
+        }
+
+        task.mScheduler = this;
+        task.mSequence = mSequence++;
+        mTasks.put(task.getKey(), task);
+        mExecutor.execute(task);
+        if (DEBUG) {
+            Log.d(TAG, "[[submit]] " + task + " queue = " + mExecutor.getQueue().size());
+        }
+        return task;
+    }
+
+    /**
+     * 修改排队中任务的优先级
+     */
+    public synchronized void setPriority(String key, int priority) {
+        ScheduledTask<?> task = mTasks.get(key);
+        if (task != null) {
+            setPriority(task, priority);
+        }
+    }
+
+    public synchronized boolean isScheduled(String key) {
+        return mTasks.containsKey(key);
+    }
+
+    /**
+     * 取消任务，排队中的直接移除，执行中的结果会交给onCancelled
+     */
+    public synchronized boolean cancel(String key) {
+        ScheduledTask<?> task = mTasks.remove(key);
+        if (task == null) {
+            return false;
+        }
+        cancelTask(task);
+        return true;
+    }
+
+    synchronized boolean cancel(ScheduledTask<?> task) {
+        if (mTasks.get(task.getKey()) != task) {
+            return false;
+        }
+        return cancel(task.getKey());
+    }
+
+    /**
+     * 取消某个对象提交的所有任务，Activity销毁时调用
+     */
+    public synchronized void cancelAll(Object owner) {
+        if (owner == null) {
+            return;
+        }
+
+        ArrayList<String> keys = new ArrayList<String>();
+        for (ScheduledTask<?> task : mTasks.values()) {
+            if (task.getOwner() == owner) {
+                keys.add(task.getKey());
+            }
+        }
+        for (String key : keys) {
+            cancel(key);
+        }
+    }
+
+    private void setPriority(ScheduledTask<?> task, int priority) {
+        if (task.mPriority == priority) {
+            return;
+        }
+        // PriorityBlockingQueue不会重新排序，需要移除后重新加入
+        if (task.mState == ScheduledTask.STATE_PENDING && mExecutor.remove(task)) {
+            task.mPriority = priority;
+            mExecutor.execute(task);
+        } else {
+            task.mPriority = priority;
+        }
+    }
+
+    private void cancelTask(ScheduledTask<?> task) {
+        int state = task.mState;
+        task.mState = ScheduledTask.STATE_CANCELLED;
+        if (state == ScheduledTask.STATE_PENDING) {
+            mExecutor.remove(task);
+        }
+    }
+
+    // 工作线程，任务已被取消时返回false
+    synchronized boolean onTaskStarted(ScheduledTask<?> task) {
+        if (task.mState != ScheduledTask.STATE_PENDING) {
+            return false;
+        }
+        task.mState = ScheduledTask.STATE_RUNNING;
+        return true;
+    }
+
+    // 工作线程
+    <Result> void onTaskFinished(final ScheduledTask<Result> task, final Result result) {
+        synchronized (this) {
+            if (mTasks.get(task.getKey()) == task) {
+                mTasks.remove(task.getKey());
+            }
+            if (!task.isCancelled()) {
+                task.mState = ScheduledTask.STATE_FINISHED;
+            }
+        }
+
+        mMainHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                if (task.isCancelled()) {
+                    task.onCancelled(result);
+                } else {
+                    task.onPostExecute(result);
+                }
+            }
+        });
+    }
+}
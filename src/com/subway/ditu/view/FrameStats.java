@@ -0,0 +1,86 @@
+/**
+ * FrameStats.java
+ */
+package com.subway.ditu.view;
+
+import android.os.Debug;
+import android.util.Log;
+
+/**
+ * 绘制耗时和每帧对象分配的统计，只在调试时打开。每REPORT_FRAMES帧输出一次平均值和最大值。
+ */
+public class FrameStats {
+    private static final String TAG = "FrameStats";
+
+    private static final int REPORT_FRAMES = 60;
+
+    private final String mName;
+    private boolean mEnabled;
+
+    private long mFrameStart;
+    private int mAllocStart;
+
+    private int mFrames;
+    private long mTotalTime;
+    private long mMaxTime;
+    private int mTotalAllocs;
+    private int mMaxAllocs;
+
+    public FrameStats(String name) {
+        mName = name;
+    }
+
+    public void setEnabled(boolean enabled) {
+        if (mEnabled == enabled) {
+            return;
+        }
+        mEnabled = enabled;
+        if (enabled) {
+            Debug.startAllocCounting();
+        } else {
+            Debug.stopAllocCounting();
+        }
+        reset();
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    public void beginFrame() {
+        if (!mEnabled) {
+            return;
+        }
+        mAllocStart = Debug.getThreadAllocCount();
+        mFrameStart = System.nanoTime();
+    }
+
+    public void endFrame() {
+        if (!mEnabled) {
+            return;
+        }
+        long time = System.nanoTime() - mFrameStart;
+        int allocs = Debug.getThreadAllocCount() - mAllocStart;
+
+        mFrames++;
+        mTotalTime += time;
+        mMaxTime = Math.max(mMaxTime, time);
+        mTotalAllocs += allocs;
+        mMaxAllocs = Math.max(mMaxAllocs, allocs);
+
+        if (mFrames >= REPORT_FRAMES) {
+            Log.d(TAG, mName + " frames = " + mFrames + " avg = " + (mTotalTime / mFrames / 1000) + "us max = "
+                    + (mMaxTime / 1000) + "us allocs avg = " + ((float) mTotalAllocs / mFrames) + " max = "
+                    + mMaxAllocs);
+            reset();
+        }
+    }
+
+    private void reset() {
+        mFrames = 0;
+        mTotalTime = 0;
+        mMaxTime = 0;
+        mTotalAllocs = 0;
+        mMaxAllocs = 0;
+    }
+}
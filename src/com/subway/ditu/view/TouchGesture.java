@@ -0,0 +1,134 @@
+/**
+ * TouchGesture.java
+ */
+package com.subway.ditu.view;
+
+import android.util.FloatMath;
+import android.view.MotionEvent;
+
+/**
+ * 把一次触摸的所有手指折算成焦点(所有手指的中心)和跨度(手指到中心平均距离的两倍)。
+ * 以anchor时的状态为起点，给出之后的平移和缩放。一个MotionEvent里的历史采样也会依次计入，不分配对象。
+ */
+class TouchGesture {
+
+    private float mStartFocusX;
+    private float mStartFocusY;
+    private float mStartSpan;
+
+    private float mFocusX;
+    private float mFocusY;
+    private float mSpan;
+
+    // anchor以来焦点离起点的最远距离，用来判断是否开始拖动
+    private float mMaxDistance;
+
+    /**
+     * 以event的当前状态为起点，手指数量变化时调用
+     *
+     * @param skipIndex 正在抬起的手指，不计入；没有时为-1
+     */
+    void anchor(MotionEvent event, int skipIndex) {
+        compute(event, -1, skipIndex);
+        mStartFocusX = mFocusX;
+        mStartFocusY = mFocusY;
+        mStartSpan = mSpan;
+        mMaxDistance = 0;
+    }
+
+    /**
+     * 依次计入event中的历史采样和当前采样
+     */
+    void update(MotionEvent event) {
+        for (int h = 0, size = event.getHistorySize(); h < size; h++) {
+            compute(event, h, -1);
+            trackDistance();
+        }
+        compute(event, -1, -1);
+        trackDistance();
+    }
+
+    float getFocusX() {
+        return mFocusX;
+    }
+
+    float getFocusY() {
+        return mFocusY;
+    }
+
+    float getStartFocusX() {
+        return mStartFocusX;
+    }
+
+    float getStartFocusY() {
+        return mStartFocusY;
+    }
+
+    float getSpan() {
+        return mSpan;
+    }
+
+    float getMaxDistance() {
+        return mMaxDistance;
+    }
+
+    float getTranslateX() {
+        return mFocusX - mStartFocusX;
+    }
+
+    float getTranslateY() {
+        return mFocusY - mStartFocusY;
+    }
+
+    /**
+     * 相对起点的缩放比例，只有一个手指时为1
+     */
+    float getScale() {
+        if (mStartSpan <= 0 || mSpan <= 0) {
+            return 1.0f;
+        }
+        return mSpan / mStartSpan;
+    }
+
+    private void trackDistance() {
+        float dx = mFocusX - mStartFocusX;
+        float dy = mFocusY - mStartFocusY;
+        float distance = FloatMath.sqrt(dx * dx + dy * dy);
+        if (distance > mMaxDistance) {
+            mMaxDistance = distance;
+        }
+    }
+
+    /**
+     * @param historyPos 历史采样的位置，-1为当前采样
+     */
+    private void compute(MotionEvent event, int historyPos, int skipIndex) {
+        int pointerCount = event.getPointerCount();
+        int count = 0;
+        float sumX = 0, sumY = 0;
+        for (int i = 0; i < pointerCount; i++) {
+            if (i == skipIndex) {
+                continue;
+            }
+            sumX += historyPos < 0 ? event.getX(i) : event.getHistoricalX(i, historyPos);
+            sumY += historyPos < 0 ? event.getY(i) : event.getHistoricalY(i, historyPos);
+            count++;
+        }
+        if (count == 0) {
+            return;
+        }
+        mFocusX = sumX / count;
+        mFocusY = sumY / count;
+
+        float sumDistance = 0;
+        for (int i = 0; i < pointerCount; i++) {
+            if (i == skipIndex) {
+                continue;
+            }
+            float dx = (historyPos < 0 ? event.getX(i) : event.getHistoricalX(i, historyPos)) - mFocusX;
+            float dy = (historyPos < 0 ? event.getY(i) : event.getHistoricalY(i, historyPos)) - mFocusY;
+            sumDistance += FloatMath.sqrt(dx * dx + dy * dy);
+        }
+        mSpan = count > 1 ? sumDistance / count * 2 : 0;
+    }
+}
@@ -6,35 +6,53 @@ package com.subway.ditu.view;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.PointF;
-import android.graphics.PorterDuff.Mode;
-import android.graphics.PorterDuffXfermode;
-import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
-import android.util.FloatMath;
 import android.view.MotionEvent;
+import android.view.VelocityTracker;
+import android.view.ViewConfiguration;
 import android.view.View;
 
+import com.subway.ditu.utils.MemoryGovernor;
+import com.subway.ditu.view.tile.Tile;
+import com.subway.ditu.view.tile.TileManager;
+import com.subway.ditu.view.tile.TileSource;
+
 /**
  * 支持缩放，拖动，还原的ImageView
  * 
  * @author Di Zhang
  */
 public class TouchImageView extends View {
+    private static final boolean DEBUG = false;
 
     public static final int EXIT = 0;
 
-    private RectF mIdleRectF;
-    private RectF mLastRectF;
-    private RectF mDesRectF;
+    // 原图到View的变换
+    private final Viewport mViewport = new Viewport();
+    // 手势开始时的变换
+    private final Viewport mStartViewport = new Viewport();
+
+    // 非分块模式下整张图在View上的位置，只在onDraw中使用
+    private final RectF mDrawRectF = new RectF();
 
     private Bitmap mBitmap;
 
+    // 整图模式下显示时的顺时针旋转角度，绘制时旋转，不生成旋转后的图片
+    private int mRotation = 0;
+    private final Matrix mDrawMatrix = new Matrix();
+
+    // 分块模式，不为null时不使用mBitmap
+    private TileManager mTileManager;
+
     private static final float MIN_SCALER = 1.0f; // 最小缩放比例
-    private static final float MAX_SCALER = 8.0f; // 最大缩放比例
+    public static final float MAX_SCALER = 8.0f; // 最大缩放比例
 
     // touch状态
     private static final int MODE_NONE = 0; // 初始状态
@@ -43,11 +61,33 @@ public class TouchImageView extends View {
     private static final int MODE_ZOOM = 3;// 缩放
     private int mTouchMode = MODE_NONE;
 
-    private PointF mPrevPointF = new PointF();
-    private PointF mMidPointF = new PointF();
-    private float mPreDist = 0f;
+    // 拖动和缩放开始生效的最小距离
+    private static final float TOUCH_SLOP = 10f;
+
+    // 所有手指的焦点和跨度，MOVE时只记录，每帧在computeScroll中统一更新一次变换
+    private final TouchGesture mGesture = new TouchGesture();
+    private boolean mGestureDirty = false;
+
+    // 拖动速度，用于分块预取和惯性滑动
+    private VelocityTracker mVelocityTracker;
+    private int mMinFlingVelocity;
+    private int mMaxFlingVelocity;
+
+    // 惯性滑动、双击、回弹、缩放限制的动画
+    private static final int ANIMATION_DURATION = 250;
+    private ViewportAnimator mAnimator;
+    private final Viewport mAnimStartViewport = new Viewport();
+    private final Viewport mAnimEndViewport = new Viewport();
 
     private boolean mFirstOnDraw = true;
+
+    // 恢复的位置：视图中心对应的原图相对坐标和相对于适应屏幕的缩放，第一次布局时应用，小于等于0表示没有
+    private static final String STATE_CENTER_X = "viewport.centerX";
+    private static final String STATE_CENTER_Y = "viewport.centerY";
+    private static final String STATE_ZOOM = "viewport.zoom";
+    private float mRestoreCenterX;
+    private float mRestoreCenterY;
+    private float mRestoreZoom = 0;
     private int mViewWidth;
     private int mViewHeight;
     private int mBitmapWidth;
@@ -55,6 +95,9 @@ public class TouchImageView extends View {
 
     private Paint paint;
 
+    // 绘制耗时和对象分配统计
+    private FrameStats mFrameStats = new FrameStats("TouchImageView");
+
     private Handler mHandler = new Handler(Looper.getMainLooper()) {
 
         @Override
@@ -82,6 +125,16 @@ public class TouchImageView extends View {
         public void onDragTap(MotionEvent event);
     }
 
+    // 第一次画出图片时回调一次，用于统计启动耗时
+    public static interface OnFirstDrawListener {
+        public void onFirstDraw();
+    }
+
+    private OnFirstDrawListener mOnFirstDrawListener;
+
+    // mBitmap是预览图，由View负责回收
+    private boolean mIsPreview = false;
+
     private static final int TAP = 1;
     private static final int DOUBLE_TAP_TIMEOUT = 200;
 
@@ -91,24 +144,28 @@ public class TouchImageView extends View {
     public TouchImageView(Context context) {
         super(context);
 
-        mDesRectF = new RectF();
-        mLastRectF = new RectF();
-        mIdleRectF = new RectF();
         paint = new Paint();
-
+        initAnimator(context);
+        mFrameStats.setEnabled(DEBUG);
     }
 
     public TouchImageView(Context context, Bitmap bitmap) {
         super(context);
 
-        mDesRectF = new RectF();
-        mLastRectF = new RectF();
-        mIdleRectF = new RectF();
         paint = new Paint();
+        initAnimator(context);
+        mFrameStats.setEnabled(DEBUG);
 
         initBitmap(bitmap);
     }
 
+    private void initAnimator(Context context) {
+        ViewConfiguration configuration = ViewConfiguration.get(context);
+        mMinFlingVelocity = configuration.getScaledMinimumFlingVelocity();
+        mMaxFlingVelocity = configuration.getScaledMaximumFlingVelocity();
+        mAnimator = new ViewportAnimator(context);
+    }
+
     private boolean initBitmap(Bitmap bitmap) {
         mBitmap = bitmap;
         if (mBitmap != null && !mBitmap.isRecycled()) {
@@ -120,24 +177,263 @@ public class TouchImageView extends View {
     }
 
     public void setImageBitmap(Bitmap bitmap) {
-        if (initBitmap(bitmap)) {
-            mFirstOnDraw = true;
-            mDesRectF = new RectF();
-            mLastRectF = new RectF();
-            mIdleRectF = new RectF();
-            invalidate();
+        setImageBitmap(bitmap, 0);
+    }
+
+    /**
+     * 显示一张需要旋转的图片，如带EXIF方向的照片。旋转在绘制时完成，缩放、拖动和坐标转换都按旋转后的图片计算。
+     * 
+     * @param bitmap 未旋转的图片
+     * @param rotation 顺时针角度，0、90、180、270，见ExifHelper.getRotationFromExif
+     */
+    public void setImageBitmap(Bitmap bitmap, int rotation) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+
+        releaseTiles();
+        recyclePreview();
+        mBitmap = bitmap;
+        mRotation = ((rotation % 360) + 360) % 360;
+        if (mRotation == 90 || mRotation == 270) {
+            setContentSize(bitmap.getHeight(), bitmap.getWidth());
+        } else {
+            setContentSize(bitmap.getWidth(), bitmap.getHeight());
+        }
+    }
+
+    /**
+     * 先显示一张很小的预览图，按原图的尺寸放大显示。之后设置的分块数据源或者整图会替换它，并保持当前的位置和缩放。
+     * 预览图由View负责回收，已经有图片时直接回收。
+     * 
+     * @param preview
+     * @param imageWidth 原图宽度
+     * @param imageHeight 原图高度
+     */
+    public void setPreviewBitmap(Bitmap preview, int imageWidth, int imageHeight) {
+        if (preview == null || preview.isRecycled()) {
+            return;
+        }
+        if (mTileManager != null || (mBitmap != null && !mIsPreview)) {
+            preview.recycle();
+            return;
+        }
+
+        recyclePreview();
+        mBitmap = preview;
+        mIsPreview = true;
+        mRotation = 0;
+        setContentSize(imageWidth, imageHeight);
+    }
+
+    /**
+     * 正在显示预览图
+     */
+    public boolean isShowingPreview() {
+        return mIsPreview && mBitmap != null;
+    }
+
+    private void recyclePreview() {
+        if (mIsPreview && mBitmap != null) {
+            mBitmap.recycle();
+            mBitmap = null;
+        }
+        mIsPreview = false;
+    }
+
+    /**
+     * 分块模式：只解码当前视口内、当前缩放比例需要的分块
+     * 
+     * @param source
+     */
+    public void setTileSource(TileSource source) {
+        if (source == null) {
+            return;
+        }
+
+        int cacheSize = MemoryGovernor.getInstance().getTileCacheBudget();
+        setTileManager(new TileManager(source, cacheSize, null));
+    }
+
+    /**
+     * 使用已有的分块管理，屏幕旋转后从上一个View接过来，已经解码的分块不用重新解码
+     * 
+     * @param manager
+     */
+    public void setTileManager(TileManager manager) {
+        if (manager == null || manager.getSource() == null) {
+            return;
         }
+
+        releaseTiles();
+        recyclePreview();
+        mBitmap = null;
+        mRotation = 0;
+        mTileManager = manager;
+        mTileManager.setOnTileLoadListener(new TileManager.OnTileLoadListener() {
+
+            @Override
+            public void onTileLoaded(Tile tile) {
+                invalidate();
+            }
+        });
+        TileSource source = manager.getSource();
+        setContentSize(source.getWidth(), source.getHeight());
+    }
+
+    /**
+     * 取走分块管理，之后由调用者负责释放，没有时返回null
+     */
+    public TileManager detachTileManager() {
+        TileManager manager = mTileManager;
+        if (manager != null) {
+            manager.setOnTileLoadListener(null);
+            mTileManager = null;
+        }
+        return manager;
+    }
+
+    /**
+     * 取走整图模式的图片，之后由调用者负责回收，预览图或者没有时返回null
+     */
+    public Bitmap detachBitmap() {
+        if (mIsPreview || mBitmap == null || mBitmap.isRecycled()) {
+            return null;
+        }
+        Bitmap bitmap = mBitmap;
+        mBitmap = null;
+        return bitmap;
+    }
+
+    /**
+     * 整图模式下显示时的旋转角度
+     */
+    public int getImageRotation() {
+        return mRotation;
+    }
+
+    /**
+     * 保存当前位置。保存的是视图中心对应的原图相对坐标和相对于适应屏幕的缩放，换了屏幕方向也能恢复到同一处。
+     */
+    public void saveViewport(Bundle outState) {
+        if (mRestoreZoom > 0) {
+            // 还没布局，保存的位置还没应用
+            outState.putFloat(STATE_CENTER_X, mRestoreCenterX);
+            outState.putFloat(STATE_CENTER_Y, mRestoreCenterY);
+            outState.putFloat(STATE_ZOOM, mRestoreZoom);
+            return;
+        }
+        if (mFirstOnDraw || mViewport.isEmpty()) {
+            return;
+        }
+
+        Viewport viewport = mViewport;
+        if (mAnimator.getMode() == ViewportAnimator.MODE_TRANSITION) {
+            viewport = mAnimator.getEnd();
+        }
+        outState.putFloat(STATE_CENTER_X, viewport.viewToImageX(mViewWidth / 2f) / mBitmapWidth);
+        outState.putFloat(STATE_CENTER_Y, viewport.viewToImageY(mViewHeight / 2f) / mBitmapHeight);
+        outState.putFloat(STATE_ZOOM, viewport.getScale() / viewport.getFitScale());
+    }
+
+    /**
+     * 恢复saveViewport保存的位置，在第一次布局时应用
+     */
+    public void restoreViewport(Bundle savedState) {
+        if (savedState == null || !savedState.containsKey(STATE_ZOOM)) {
+            return;
+        }
+        mRestoreCenterX = savedState.getFloat(STATE_CENTER_X);
+        mRestoreCenterY = savedState.getFloat(STATE_CENTER_Y);
+        mRestoreZoom = savedState.getFloat(STATE_ZOOM);
+        invalidate();
+    }
+
+    /**
+     * 释放分块及解码线程，Activity销毁时调用
+     */
+    public void recycle() {
+        releaseTiles();
+        recyclePreview();
+    }
+
+    private void releaseTiles() {
+        if (mTileManager != null) {
+            mTileManager.release();
+            mTileManager = null;
+        }
+    }
+
+    /**
+     * 换成新的内容。已经显示过同样宽高比的内容时保持当前的位置和缩放，只换算原图坐标，否则回到初始位置。
+     */
+    private void setContentSize(int width, int height) {
+        int oldWidth = mBitmapWidth;
+        int oldHeight = mBitmapHeight;
+        mBitmapWidth = width;
+        mBitmapHeight = height;
+        if (mFirstOnDraw || oldWidth <= 0 || oldHeight <= 0 || width <= 0 || height <= 0
+                || Math.abs((float) width / height - (float) oldWidth / oldHeight) > 0.01f) {
+            resetPosition();
+            return;
+        }
+
+        if (mAnimator.getMode() == ViewportAnimator.MODE_TRANSITION) {
+            mViewport.set(mAnimator.getEnd());
+        }
+        mAnimator.stop();
+        mViewport.resizeImage(width, height);
+        mStartViewport.resizeImage(width, height);
+        invalidate();
+    }
+
+    private void resetPosition() {
+        mAnimator.stop();
+        mFirstOnDraw = true;
+        mViewport.setImageSize(mBitmapWidth, mBitmapHeight);
+        invalidate();
+    }
+
+    /**
+     * View上的点对应的原图坐标，用于点击检测
+     * 
+     * @return 点是否落在图片上
+     */
+    public boolean viewToImage(float x, float y, PointF out) {
+        if (mViewport.isEmpty()) {
+            return false;
+        }
+        mViewport.viewToImage(x, y, out);
+        return out.x >= 0 && out.y >= 0 && out.x < mBitmapWidth && out.y < mBitmapHeight;
+    }
+
+    /**
+     * 打开后每60帧在logcat输出一次绘制耗时和每帧分配的对象数
+     */
+    public void setFrameStatsEnabled(boolean enabled) {
+        mFrameStats.setEnabled(enabled);
     }
 
     public void setOnTapListener(onTapListener listener) {
         mOnTapListener = listener;
     }
 
+    public void setOnFirstDrawListener(OnFirstDrawListener listener) {
+        mOnFirstDrawListener = listener;
+    }
+
     @Override
     public boolean onTouchEvent(MotionEvent event) {
+        if (mVelocityTracker == null) {
+            mVelocityTracker = VelocityTracker.obtain();
+        }
+        mVelocityTracker.addMovement(event);
+
         switch (event.getAction() & MotionEvent.ACTION_MASK) {
         // 主点按下
         case MotionEvent.ACTION_DOWN:
+            // 按下时停在当前位置
+            mAnimator.stop();
             mIsSingleTap = true;
             boolean hadTapMessage = mHandler.hasMessages(TAP);
             if (hadTapMessage) {
@@ -154,71 +450,71 @@ public class TouchImageView extends View {
                 mHandler.sendEmptyMessageDelayed(TAP, DOUBLE_TAP_TIMEOUT);
             }
 
-            mLastRectF.set(mDesRectF);
-            mPrevPointF.set(event.getX(), event.getY());
+            mGesture.anchor(event, -1);
+            mStartViewport.set(mViewport);
+            mGestureDirty = false;
             mTouchMode = MODE_PRESS;
             break;
         // 副点按下
         case MotionEvent.ACTION_POINTER_DOWN:
-            mPreDist = getSpace(event);
-            // 如果连续两点距离大于10，则判定为多点模式
-            if (getSpace(event) > 10f) {
-
-                mLastRectF.set(mDesRectF);
-                mMidPointF = getMidPointF(event);
+            flushGesture();
+            mGesture.anchor(event, -1);
+            mStartViewport.set(mViewport);
+            // 如果手指之间的跨度大于10，则判定为多点模式
+            if (mGesture.getSpan() > TOUCH_SLOP) {
                 mTouchMode = MODE_ZOOM;
             }
             break;
         case MotionEvent.ACTION_UP:
+            flushGesture();
             if (mTouchMode == MODE_PRESS) {
                 if (mIsDoubleTap) {
                     mIsDoubleTap = false;
                 }
                 mIsSingleTap = false;
+            } else if (mTouchMode == MODE_DRAG && isDragable()) {
+                mVelocityTracker.computeCurrentVelocity(1000, mMaxFlingVelocity);
+                float velocityX = mVelocityTracker.getXVelocity();
+                float velocityY = mVelocityTracker.getYVelocity();
+                if (Math.abs(velocityX) > mMinFlingVelocity || Math.abs(velocityY) > mMinFlingVelocity) {
+                    // 滑动结束后在computeScroll中检查位置
+                    mAnimator.startFling(mViewport, velocityX, velocityY);
+                    invalidate();
+                } else {
+                    checkPosition();
+                }
             } else {
                 checkPosition();
             }
             mTouchMode = MODE_NONE;
+            stopTracking();
             break;
         case MotionEvent.ACTION_POINTER_UP:
+            flushGesture();
+            if (mTouchMode == MODE_ZOOM && event.getPointerCount() > 2) {
+                // 还剩两个以上手指，以剩下的手指为新的起点继续缩放
+                mGesture.anchor(event, event.getActionIndex());
+                mStartViewport.set(mViewport);
+                break;
+            }
             if (mTouchMode == MODE_ZOOM)
                 checkZoomSize();
             mTouchMode = MODE_NONE;
             break;
         case MotionEvent.ACTION_MOVE:
-            if (mTouchMode == MODE_DRAG || mTouchMode == MODE_PRESS) {
-                float dragX = event.getX() - mPrevPointF.x;
-                float dragY = event.getY() - mPrevPointF.y;
-
-                float dragLength = FloatMath.sqrt(dragX * dragX + dragY * dragY);
-                if (dragLength > 10f) {
-                    mTouchMode = MODE_DRAG;
-                    if (isDragable()) {
-                        mDesRectF.set(mLastRectF.left + dragX, mLastRectF.top + dragY, mLastRectF.right + dragX,
-                                mLastRectF.bottom + dragY);
-                        invalidate();
-                    }
-
-                    if (mOnTapListener != null) {
-                        mOnTapListener.onDragTap(event);
-                    }
+            mGesture.update(event);
+            if (mTouchMode == MODE_PRESS && mGesture.getMaxDistance() > TOUCH_SLOP) {
+                mTouchMode = MODE_DRAG;
+            }
+            if (mTouchMode == MODE_DRAG) {
+                scheduleGesture();
+                if (mOnTapListener != null) {
+                    mOnTapListener.onDragTap(event);
                 }
-            } else if (mTouchMode == MODE_ZOOM) {
-                float newDist = getSpace(event);
-                if (newDist > 10f) {
-
-                    float tScale = newDist / mPreDist;
-
-                    float deltaLeft = (float) ((tScale - 1.0) * (mLastRectF.left - mMidPointF.x));
-                    float deltaRight = (float) ((tScale - 1.0) * (mLastRectF.right - mMidPointF.x));
-                    float deltaTop = (float) ((tScale - 1.0) * (mLastRectF.top - mMidPointF.y));
-                    float deltaBottom = (float) ((tScale - 1.0) * (mLastRectF.bottom - mMidPointF.y));
-                    mDesRectF.set(mLastRectF.left + deltaLeft, mLastRectF.top + deltaTop,
-                            mLastRectF.right + deltaRight, mLastRectF.bottom + deltaBottom);
-                    invalidate();
-                    if (mOnTapListener != null) {
-                        mOnTapListener.onScaleTap(event);
-                    }
+            } else if (mTouchMode == MODE_ZOOM && mGesture.getSpan() > TOUCH_SLOP) {
+                scheduleGesture();
+                if (mOnTapListener != null) {
+                    mOnTapListener.onScaleTap(event);
                 }
             }
             break;
@@ -226,87 +522,210 @@ public class TouchImageView extends View {
             mIsDoubleTap = false;
             mIsSingleTap = false;
             mTouchMode = MODE_NONE;
+            mGestureDirty = false;
             mHandler.removeMessages(TAP);
+            stopTracking();
             break;
         }
         return true;
     }
 
+    /**
+     * 一帧内的多个MOVE只请求一次重绘，变换在下一帧绘制前更新
+     */
+    private void scheduleGesture() {
+        if (!mGestureDirty) {
+            mGestureDirty = true;
+            invalidate();
+        }
+    }
+
+    /**
+     * 把还没生效的手势应用到变换上，手指数量变化和抬起前调用，保证以最新的位置为准
+     */
+    private void flushGesture() {
+        if (mGestureDirty) {
+            applyGesture();
+        }
+    }
+
+    /**
+     * 以手势起点的变换为基础，叠加焦点的平移和以焦点为中心的缩放
+     */
+    private void applyGesture() {
+        mGestureDirty = false;
+        if (mTouchMode == MODE_DRAG) {
+            if (!isDragable()) {
+                return;
+            }
+            mViewport.set(mStartViewport);
+            mViewport.postTranslate(mGesture.getTranslateX(), mGesture.getTranslateY());
+            if (mTileManager != null && mVelocityTracker != null) {
+                mVelocityTracker.computeCurrentVelocity(1000);
+                mTileManager.setVelocity(mVelocityTracker.getXVelocity(), mVelocityTracker.getYVelocity());
+            }
+        } else if (mTouchMode == MODE_ZOOM) {
+            mViewport.set(mStartViewport);
+            mViewport.postScale(mGesture.getScale(), mGesture.getStartFocusX(), mGesture.getStartFocusY());
+            mViewport.postTranslate(mGesture.getTranslateX(), mGesture.getTranslateY());
+        }
+    }
+
+    private void stopTracking() {
+        if (mVelocityTracker != null) {
+            mVelocityTracker.recycle();
+            mVelocityTracker = null;
+        }
+        if (mTileManager != null && mAnimator.getMode() != ViewportAnimator.MODE_FLING) {
+            mTileManager.setVelocity(0, 0);
+        }
+    }
+
+    /**
+     * 每帧绘制前应用手势、推进动画
+     */
+    @Override
+    public void computeScroll() {
+        if (mGestureDirty) {
+            applyGesture();
+        }
+        if (!mAnimator.isRunning()) {
+            return;
+        }
+
+        boolean fling = mAnimator.getMode() == ViewportAnimator.MODE_FLING;
+        if (mAnimator.compute(mViewport)) {
+            invalidate();
+        } else if (fling) {
+            if (mTileManager != null) {
+                mTileManager.setVelocity(0, 0);
+            }
+            checkPosition();
+        } else {
+            // 过渡结束，按高质量重绘一次
+            invalidate();
+        }
+    }
+
+    /**
+     * 开始一次动画过渡：记录当前显示的位置，如果上一次过渡还没结束，以它的终点作为新的起点计算目标位置
+     */
+    private void beginTransition() {
+        mAnimStartViewport.set(mViewport);
+        if (mAnimator.getMode() == ViewportAnimator.MODE_TRANSITION) {
+            mViewport.set(mAnimator.getEnd());
+        }
+        mAnimator.stop();
+    }
+
+    /**
+     * 从beginTransition记录的位置过渡到当前计算出的目标位置
+     */
+    private void commitTransition() {
+        mAnimEndViewport.set(mViewport);
+        mViewport.set(mAnimStartViewport);
+        mAnimator.startTransition(mAnimStartViewport, mAnimEndViewport, ANIMATION_DURATION);
+        invalidate();
+    }
+
+    /**
+     * 地图不透明，直接画在上面，不先清空画布。这里每帧都会调用，不能分配对象。
+     */
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
+        mFrameStats.beginFrame();
         if (mFirstOnDraw) {
             mViewWidth = this.getWidth();
             mViewHeight = this.getHeight();
 
-            adapterWidth();
-            mIdleRectF.set(mDesRectF);
+            if (mRestoreZoom > 0 && mBitmapWidth > 0 && mBitmapHeight > 0) {
+                applyRestoredViewport();
+            } else {
+                adapterWidth();
+            }
 
             mFirstOnDraw = false;
         }
 
-        canvas.save();
-        paint.setXfermode(new PorterDuffXfermode(Mode.CLEAR));
-        canvas.drawPaint(paint);
-        paint.setXfermode(new PorterDuffXfermode(Mode.SRC));
-        if (mBitmap != null && !mBitmap.isRecycled()) {
-            Rect src = new Rect(0, 0, mBitmapWidth, mBitmapHeight);
-            canvas.drawBitmap(mBitmap, src, mDesRectF, paint);
+        // 拖动、缩放和动画过程中不做双线性过滤，缩放时只用已经缓存的分块，停下来后再画清晰的
+        boolean zooming = mTouchMode == MODE_ZOOM || mAnimator.getMode() == ViewportAnimator.MODE_TRANSITION;
+        paint.setFilterBitmap(!zooming && mTouchMode != MODE_DRAG && !mAnimator.isRunning());
+
+        boolean drawn = false;
+        if (mTileManager != null) {
+            mTileManager.update(mViewport, zooming);
+            mTileManager.draw(canvas, mViewport, paint);
+            drawn = true;
+        } else if (mBitmap != null && !mBitmap.isRecycled()) {
+            mViewport.getImageRect(mDrawRectF);
+            if (mRotation == 0) {
+                canvas.drawBitmap(mBitmap, null, mDrawRectF, paint);
+            } else {
+                computeRotationMatrix(mDrawRectF);
+                canvas.drawBitmap(mBitmap, mDrawMatrix, paint);
+            }
+            drawn = true;
+        }
+        mFrameStats.endFrame();
+
+        if (drawn && mOnFirstDrawListener != null) {
+            OnFirstDrawListener listener = mOnFirstDrawListener;
+            mOnFirstDrawListener = null;
+            listener.onFirstDraw();
+        }
+    }
+
+    /**
+     * 把未旋转的mBitmap旋转后放进图片在View上的位置
+     */
+    private void computeRotationMatrix(RectF imageRect) {
+        int width = mBitmap.getWidth();
+        int height = mBitmap.getHeight();
+        mDrawMatrix.setRotate(mRotation);
+        // 旋转后移回第一象限
+        switch (mRotation) {
+        case 90:
+            mDrawMatrix.postTranslate(height, 0);
+            break;
+        case 180:
+            mDrawMatrix.postTranslate(width, height);
+            break;
+        case 270:
+            mDrawMatrix.postTranslate(0, width);
+            break;
         }
-        canvas.restore();
+        float rotatedWidth = (mRotation == 90 || mRotation == 270) ? height : width;
+        float scale = imageRect.width() / rotatedWidth;
+        mDrawMatrix.postScale(scale, scale);
+        mDrawMatrix.postTranslate(imageRect.left, imageRect.top);
     }
 
     /**
      * 限制最大最小缩放比例，自动居中 缩小后尺寸 < 原始尺寸 还原
      */
     private void checkZoomSize() {
-        mLastRectF.set(mDesRectF);
-
-        float scaleX = mDesRectF.width() / mIdleRectF.width();
-        float scaleY = mDesRectF.height() / mIdleRectF.height();
+        beginTransition();
 
         if (mTouchMode == MODE_ZOOM) {
-            if (scaleX < MIN_SCALER || scaleY < MIN_SCALER) {
-                mDesRectF.set(mIdleRectF);
-            } else if (scaleX > MAX_SCALER || scaleY > MAX_SCALER) {
-                float dx = MAX_SCALER / scaleX;
-                float dY = MAX_SCALER / scaleY;
-
-                float deltaLeft = (float) ((dx - 1.0) * (mLastRectF.left - mMidPointF.x));
-                float deltaRight = (float) ((dx - 1.0) * (mLastRectF.right - mMidPointF.x));
-                float deltaTop = (float) ((dY - 1.0) * (mLastRectF.top - mMidPointF.y));
-                float deltaBottom = (float) ((dY - 1.0) * (mLastRectF.bottom - mMidPointF.y));
-                mDesRectF.set(mLastRectF.left + deltaLeft, mLastRectF.top + deltaTop, mLastRectF.right + deltaRight,
-                        mLastRectF.bottom + deltaBottom);
+            float fitScale = mViewport.getFitScale();
+            if (mViewport.getScale() < fitScale * MIN_SCALER) {
+                mViewport.center(fitScale * MIN_SCALER);
+            } else {
+                mViewport.clampScale(fitScale * MIN_SCALER, fitScale * MAX_SCALER, mGesture.getFocusX(), mGesture.getFocusY());
             }
         }
 
-        invalidate();
+        commitTransition();
     }
 
     /*
      * 检查超出位置
      */
     private void checkPosition() {
-        mLastRectF.set(mDesRectF);
-        float deltaX = 0.0f;
-        float deltaY = 0.0f;
-        if ((mLastRectF.left < 0 && mLastRectF.right < mViewWidth)
-                || (mLastRectF.left > 0 && mLastRectF.right > mViewWidth)) {
-            float absX1 = Math.abs(0 - mLastRectF.left);
-            float absX2 = Math.abs(mViewWidth - mLastRectF.right);
-            deltaX = absX1 < absX2 ? 0 - mLastRectF.left : mViewWidth - mLastRectF.right;
-        }
-        if ((mLastRectF.top < 0 && mLastRectF.bottom < mViewHeight)
-                || (mLastRectF.top > 0 && mLastRectF.bottom > mViewHeight)) {
-            float absY1 = Math.abs(0 - mLastRectF.top);
-            float absY2 = Math.abs(mViewHeight - mLastRectF.bottom);
-            deltaY = absY1 < absY2 ? 0 - mLastRectF.top : mViewHeight - mLastRectF.bottom;
-        }
-        mDesRectF.set(mLastRectF.left + deltaX, mLastRectF.top + deltaY, mLastRectF.right + deltaX, mLastRectF.bottom
-                + deltaY);
-
-        invalidate();
+        beginTransition();
+        mViewport.clampPosition();
+        commitTransition();
     }
 
     /**
@@ -315,71 +734,38 @@ public class TouchImageView extends View {
      * @return
      */
     private boolean isDragable() {
-
-        if (mDesRectF.top < 0 || mDesRectF.left < 0 || mDesRectF.right > mViewWidth || mDesRectF.bottom > mViewHeight) {
-            return true;
-        }
-        return false;
+        return mViewport.isOverflowing();
     }
 
     /**
-     * 横向、纵向居中
+     * 缩放至适应宽度
      */
-    private void center(boolean horizontal, boolean vertical) {
-
-        mLastRectF.set(mDesRectF);
-
-        float deltaX = 0, deltaY = 0;
-
-        if (vertical) {
-            deltaY = ((0 - mLastRectF.top) + (mViewHeight - mLastRectF.bottom)) / 2;
-        }
-
-        if (horizontal) {
-            deltaX = ((0 - mLastRectF.left) + (mViewWidth - mLastRectF.right)) / 2;
-        }
-
-        mDesRectF.set(mLastRectF.left + deltaX, mLastRectF.top + deltaY, mLastRectF.right + deltaX, mLastRectF.bottom
-                + deltaY);
-
+    public void adapterWidth() {
+        mViewport.setViewSize(mViewWidth, mViewHeight);
+        mViewport.center(mViewport.getFitScale());
         invalidate();
-
     }
 
     /**
-     * 缩放至适应宽度
+     * 按恢复的相对缩放和中心点放置图片
      */
-    public void adapterWidth() {
-        mDesRectF.set(0, 0, mBitmapWidth, mBitmapHeight);
-        mLastRectF.set(mDesRectF);
-        float dX = mViewWidth / mLastRectF.width();
-        float dY = mViewHeight / mLastRectF.height();
-        float dScale = 0f;
-        dScale = dX < dY ? dX : dY;
-        mDesRectF.set(mLastRectF.left * dScale, mLastRectF.top * dScale, mLastRectF.right * dScale, mLastRectF.bottom
-                * dScale);
-
-        invalidate();
-
-        center(true, true);
+    private void applyRestoredViewport() {
+        mViewport.setViewSize(mViewWidth, mViewHeight);
+        float zoom = Math.max(MIN_SCALER, Math.min(MAX_SCALER, mRestoreZoom));
+        mViewport.center(mViewport.getFitScale() * zoom);
+        mViewport.postTranslate(mViewWidth / 2f - mViewport.imageToViewX(mRestoreCenterX * mBitmapWidth),
+                mViewHeight / 2f - mViewport.imageToViewY(mRestoreCenterY * mBitmapHeight));
+        mViewport.clampPosition();
+        mRestoreZoom = 0;
     }
 
     /**
      * 缩放至适应高度
      */
     private void adapterHeight() {
-        mDesRectF.set(0, 0, mBitmapWidth, mBitmapHeight);
-        mLastRectF.set(mDesRectF);
-        float dX = mViewWidth / mLastRectF.width();
-        float dY = mViewHeight / mLastRectF.height();
-        float dScale = 0f;
-        dScale = dX < dY ? dY : dX;
-        mDesRectF.set(mLastRectF.left * dScale, mLastRectF.top * dScale, mLastRectF.right * dScale, mLastRectF.bottom
-                * dScale);
-
-        invalidate();
-
-        center(true, true);
+        beginTransition();
+        mViewport.center(mViewport.getFillScale());
+        commitTransition();
     }
 
     /**
@@ -388,27 +774,7 @@ public class TouchImageView extends View {
      * @return
      */
     public boolean isIdlePosition() {
-        return mBitmap != null && mDesRectF.equals(mIdleRectF);
-    }
-
-    /**
-     * 两点的距离
-     */
-    private float getSpace(MotionEvent event) {
-        float x = event.getX(0) - event.getX(1);
-        float y = event.getY(0) - event.getY(1);
-        return FloatMath.sqrt(x * x + y * y);
-    }
-
-    /**
-     * 两点的中点
-     */
-    private PointF getMidPointF(MotionEvent event) {
-        PointF point = new PointF();
-        float x = event.getX(0) + event.getX(1);
-        float y = event.getY(0) + event.getY(1);
-        point.set(x / 2, y / 2);
-        return point;
+        return (mBitmap != null || mTileManager != null) && mViewport.isFitCenter();
     }
 
 }
\ No newline at end of file
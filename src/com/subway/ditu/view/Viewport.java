@@ -0,0 +1,246 @@
+/**
+ * Viewport.java
+ */
+package com.subway.ditu.view;
+
+import android.graphics.PointF;
+import android.graphics.RectF;
+
+/**
+ * 图片在View上的变换：view = image * scale + translate。 负责View坐标和原图坐标的相互转换、缩放平移的叠加以及位置限制，
+ * 所有方法都不分配对象。
+ */
+public class Viewport {
+
+    // 比较缩放比例和位置时允许的误差
+    private static final float EPSILON = 0.01f;
+
+    private int mImageWidth;
+    private int mImageHeight;
+    private int mViewWidth;
+    private int mViewHeight;
+
+    private float mScale = 1.0f;
+    private float mTranslateX;
+    private float mTranslateY;
+
+    public void set(Viewport other) {
+        mImageWidth = other.mImageWidth;
+        mImageHeight = other.mImageHeight;
+        mViewWidth = other.mViewWidth;
+        mViewHeight = other.mViewHeight;
+        mScale = other.mScale;
+        mTranslateX = other.mTranslateX;
+        mTranslateY = other.mTranslateY;
+    }
+
+    public void set(float scale, float translateX, float translateY) {
+        mScale = scale;
+        mTranslateX = translateX;
+        mTranslateY = translateY;
+    }
+
+    public void setImageSize(int width, int height) {
+        mImageWidth = width;
+        mImageHeight = height;
+    }
+
+    /**
+     * 换成同样内容、不同分辨率的图片，图片在View上的位置和大小不变
+     */
+    public void resizeImage(int width, int height) {
+        if (mImageWidth > 0 && width > 0) {
+            mScale = mScale * mImageWidth / width;
+        }
+        mImageWidth = width;
+        mImageHeight = height;
+    }
+
+    public void setViewSize(int width, int height) {
+        mViewWidth = width;
+        mViewHeight = height;
+    }
+
+    public int getImageWidth() {
+        return mImageWidth;
+    }
+
+    public int getImageHeight() {
+        return mImageHeight;
+    }
+
+    public int getViewWidth() {
+        return mViewWidth;
+    }
+
+    public int getViewHeight() {
+        return mViewHeight;
+    }
+
+    public float getScale() {
+        return mScale;
+    }
+
+    public float getTranslateX() {
+        return mTranslateX;
+    }
+
+    public float getTranslateY() {
+        return mTranslateY;
+    }
+
+    public boolean isEmpty() {
+        return mImageWidth <= 0 || mImageHeight <= 0 || mViewWidth <= 0 || mViewHeight <= 0;
+    }
+
+    /**
+     * 整张图正好放进View的缩放比例
+     */
+    public float getFitScale() {
+        if (isEmpty()) {
+            return 1.0f;
+        }
+        return Math.min((float) mViewWidth / mImageWidth, (float) mViewHeight / mImageHeight);
+    }
+
+    /**
+     * 整张图正好铺满View的缩放比例
+     */
+    public float getFillScale() {
+        if (isEmpty()) {
+            return 1.0f;
+        }
+        return Math.max((float) mViewWidth / mImageWidth, (float) mViewHeight / mImageHeight);
+    }
+
+    // ---------------------------------------------------------------- 坐标转换
+
+    public float imageToViewX(float x) {
+        return x * mScale + mTranslateX;
+    }
+
+    public float imageToViewY(float y) {
+        return y * mScale + mTranslateY;
+    }
+
+    public float viewToImageX(float x) {
+        return (x - mTranslateX) / mScale;
+    }
+
+    public float viewToImageY(float y) {
+        return (y - mTranslateY) / mScale;
+    }
+
+    /**
+     * View上的点对应的原图坐标
+     */
+    public void viewToImage(float x, float y, PointF out) {
+        out.set(viewToImageX(x), viewToImageY(y));
+    }
+
+    /**
+     * 整张图在View上的位置
+     */
+    public void getImageRect(RectF out) {
+        out.set(mTranslateX, mTranslateY, mTranslateX + mImageWidth * mScale, mTranslateY + mImageHeight * mScale);
+    }
+
+    /**
+     * View的可见区域在原图上的位置，不超出原图
+     */
+    public void getVisibleImageRect(RectF out) {
+        out.set(Math.max(0, viewToImageX(0)), Math.max(0, viewToImageY(0)),
+                Math.min(mImageWidth, viewToImageX(mViewWidth)), Math.min(mImageHeight, viewToImageY(mViewHeight)));
+    }
+
+    // ---------------------------------------------------------------- 变换叠加
+
+    public void postTranslate(float dx, float dy) {
+        mTranslateX += dx;
+        mTranslateY += dy;
+    }
+
+    /**
+     * 以View上的(px, py)为中心缩放，中心点对应的原图位置不变
+     */
+    public void postScale(float factor, float px, float py) {
+        mScale *= factor;
+        mTranslateX = px + (mTranslateX - px) * factor;
+        mTranslateY = py + (mTranslateY - py) * factor;
+    }
+
+    /**
+     * 在from和to之间按比例t插值
+     */
+    public void interpolate(Viewport from, Viewport to, float t) {
+        mScale = from.mScale + (to.mScale - from.mScale) * t;
+        mTranslateX = from.mTranslateX + (to.mTranslateX - from.mTranslateX) * t;
+        mTranslateY = from.mTranslateY + (to.mTranslateY - from.mTranslateY) * t;
+    }
+
+    // ---------------------------------------------------------------- 位置限制
+
+    /**
+     * 按scale缩放并居中
+     */
+    public void center(float scale) {
+        mScale = scale;
+        mTranslateX = (mViewWidth - mImageWidth * scale) / 2;
+        mTranslateY = (mViewHeight - mImageHeight * scale) / 2;
+    }
+
+    /**
+     * 缩放比例限制在[minScale, maxScale]，以(px, py)为中心
+     */
+    public void clampScale(float minScale, float maxScale, float px, float py) {
+        if (mScale < minScale) {
+            postScale(minScale / mScale, px, py);
+        } else if (mScale > maxScale) {
+            postScale(maxScale / mScale, px, py);
+        }
+    }
+
+    /**
+     * 比View小的方向居中，比View大的方向边缘不能离开View的边缘
+     */
+    public void clampPosition() {
+        mTranslateX = clampTranslate(mTranslateX, mImageWidth * mScale, mViewWidth);
+        mTranslateY = clampTranslate(mTranslateY, mImageHeight * mScale, mViewHeight);
+    }
+
+    private static float clampTranslate(float translate, float contentSize, int viewSize) {
+        if (contentSize <= viewSize) {
+            return (viewSize - contentSize) / 2;
+        }
+        return Math.max(viewSize - contentSize, Math.min(0, translate));
+    }
+
+    /**
+     * 图片是否有超出View的部分，可以拖动
+     */
+    public boolean isOverflowing() {
+        return mTranslateX < 0 || mTranslateY < 0 || imageToViewX(mImageWidth) > mViewWidth
+                || imageToViewY(mImageHeight) > mViewHeight;
+    }
+
+    /**
+     * 是否是整张图居中放进View的初始位置
+     */
+    public boolean isFitCenter() {
+        if (isEmpty()) {
+            return false;
+        }
+        float fitScale = getFitScale();
+        return Math.abs(mScale - fitScale) <= EPSILON * fitScale
+                && Math.abs(mTranslateX - (mViewWidth - mImageWidth * fitScale) / 2) <= 1
+                && Math.abs(mTranslateY - (mViewHeight - mImageHeight * fitScale) / 2) <= 1;
+    }
+
+    /**
+     * 两个变换是否相同，位移相差不到一个像素、缩放比例相差不到1%
+     */
+    public boolean isSameAs(Viewport other) {
+        return Math.abs(mScale - other.mScale) <= EPSILON * mScale
+                && Math.abs(mTranslateX - other.mTranslateX) < 1 && Math.abs(mTranslateY - other.mTranslateY) < 1;
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * ViewportAnimator.java
+ */
+package com.subway.ditu.view;
+
+import android.content.Context;
+import android.graphics.RectF;
+import android.view.animation.AnimationUtils;
+import android.view.animation.DecelerateInterpolator;
+import android.view.animation.Interpolator;
+import android.widget.Scroller;
+
+/**
+ * 图片位置的动画：惯性滑动和两个位置之间的过渡。由View在每一帧的computeScroll中驱动，每帧不分配对象。
+ */
+public class ViewportAnimator {
+
+    public static final int MODE_NONE = 0;
+    public static final int MODE_FLING = 1;
+    public static final int MODE_TRANSITION = 2;
+
+    private final Scroller mScroller;
+    private final Interpolator mInterpolator = new DecelerateInterpolator();
+
+    private final Viewport mStart = new Viewport();
+    private final Viewport mEnd = new Viewport();
+    private final RectF mImageRectF = new RectF();
+    private long mStartTime;
+    private int mDuration;
+
+    private int mLastFlingX;
+    private int mLastFlingY;
+
+    private int mMode = MODE_NONE;
+
+    public ViewportAnimator(Context context) {
+        mScroller = new Scroller(context);
+    }
+
+    public int getMode() {
+        return mMode;
+    }
+
+    public boolean isRunning() {
+        return mMode != MODE_NONE;
+    }
+
+    /**
+     * 过渡动画的终点
+     */
+    public Viewport getEnd() {
+        return mEnd;
+    }
+
+    /**
+     * 惯性滑动，图片不会滑出可拖动的范围
+     * 
+     * @param current 当前的变换
+     * @param velocityX 像素/秒
+     */
+    public void startFling(Viewport current, float velocityX, float velocityY) {
+        stop();
+
+        RectF rect = mImageRectF;
+        current.getImageRect(rect);
+        int viewWidth = current.getViewWidth();
+        int viewHeight = current.getViewHeight();
+        int minX = 0, maxX = 0, minY = 0, maxY = 0;
+        if (rect.width() > viewWidth) {
+            minX = (int) Math.min(0, viewWidth - rect.right);
+            maxX = (int) Math.max(0, -rect.left);
+        }
+        if (rect.height() > viewHeight) {
+            minY = (int) Math.min(0, viewHeight - rect.bottom);
+            maxY = (int) Math.max(0, -rect.top);
+        }
+
+        mLastFlingX = 0;
+        mLastFlingY = 0;
+        mScroller.fling(0, 0, (int) velocityX, (int) velocityY, minX, maxX, minY, maxY);
+        mMode = MODE_FLING;
+    }
+
+    /**
+     * 从from过渡到to
+     */
+    public void startTransition(Viewport from, Viewport to, int duration) {
+        stop();
+        if (from.isSameAs(to)) {
+            return;
+        }
+
+        mStart.set(from);
+        mEnd.set(to);
+        mStartTime = AnimationUtils.currentAnimationTimeMillis();
+        mDuration = duration;
+        mMode = MODE_TRANSITION;
+    }
+
+    /**
+     * 计算当前帧的位置
+     * 
+     * @param out 当前的变换，滑动时在原位置上偏移，过渡时直接设置
+     * @return 动画是否还在进行
+     */
+    public boolean compute(Viewport out) {
+        switch (mMode) {
+        case MODE_FLING:
+            if (!mScroller.computeScrollOffset()) {
+                mMode = MODE_NONE;
+                return false;
+            }
+            int x = mScroller.getCurrX();
+            int y = mScroller.getCurrY();
+            out.postTranslate(x - mLastFlingX, y - mLastFlingY);
+            mLastFlingX = x;
+            mLastFlingY = y;
+            return true;
+        case MODE_TRANSITION:
+            long elapsed = AnimationUtils.currentAnimationTimeMillis() - mStartTime;
+            if (elapsed >= mDuration) {
+                out.set(mEnd);
+                mMode = MODE_NONE;
+                return false;
+            }
+            float t = mInterpolator.getInterpolation((float) elapsed / mDuration);
+            out.interpolate(mStart, mEnd, t);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 停在当前位置
+     */
+    public void stop() {
+        if (mMode == MODE_FLING) {
+            mScroller.forceFinished(true);
+        }
+        mMode = MODE_NONE;
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * PreviewImage.java
+ */
+package com.subway.ditu.view.tile;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import com.subway.ditu.utils.AtomicFile;
+import com.subway.ditu.utils.image.ImageSource;
+
+/**
+ * 启动时最先显示的小预览图。第一次从原图按大采样率解码并保存，以后直接解码保存的小文件，只需要几毫秒。
+ */
+public class PreviewImage {
+
+    // 预览图的生成方式变化时加一
+    public static final int FORMAT_VERSION = 1;
+
+    private static final String TAG = "PreviewImage";
+    private static final boolean DEBUG = false;
+
+    // 预览图的最大边长
+    private static final int PREVIEW_MAX_SIZE = 512;
+    private static final int PREVIEW_QUALITY = 85;
+
+    private final File mFile;
+
+    private Bitmap mBitmap;
+    private int mImageWidth;
+    private int mImageHeight;
+
+    public PreviewImage(File file) {
+        mFile = file;
+    }
+
+    public Bitmap getBitmap() {
+        return mBitmap;
+    }
+
+    /**
+     * 原图宽度
+     */
+    public int getImageWidth() {
+        return mImageWidth;
+    }
+
+    /**
+     * 原图高度
+     */
+    public int getImageHeight() {
+        return mImageHeight;
+    }
+
+    /**
+     * 解码预览图，需要在后台线程调用
+     *
+     * @param source 原图
+     * @param imageWidth 原图宽度
+     * @param imageHeight 原图高度
+     * @param useSaved 保存的预览图是否有效，无效或者解码失败时从原图重新生成
+     * @return
+     */
+    public boolean load(ImageSource source, int imageWidth, int imageHeight, boolean useSaved) {
+        long curTime = System.currentTimeMillis();
+        mImageWidth = imageWidth;
+        mImageHeight = imageHeight;
+
+        if (useSaved && mFile.exists()) {
+            mBitmap = decodeFile();
+        }
+        if (mBitmap == null) {
+            mBitmap = decodeSource(source);
+            if (mBitmap != null) {
+                save();
+            }
+        }
+
+        if (DEBUG) {
+            Log.d(TAG, "[[load]] useSaved = " + useSaved + " cost = " + (System.currentTimeMillis() - curTime) + "ms");
+        }
+        return mBitmap != null;
+    }
+
+    private Bitmap decodeFile() {
+        try {
+            BitmapFactory.Options opt = new BitmapFactory.Options();
+            opt.inPreferredConfig = Bitmap.Config.RGB_565;
+            return BitmapFactory.decodeFile(mFile.getAbsolutePath(), opt);
+        } catch (Exception e) {
+            e.printStackTrace();
+        } catch (OutOfMemoryError e) {
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+
+    /**
+     * 按2的幂采样解码原图，JPEG解码器在缩小的DCT上直接解码，比完整解码快很多
+     */
+    private Bitmap decodeSource(ImageSource source) {
+        int sampleSize = 1;
+        while (mImageWidth / sampleSize > PREVIEW_MAX_SIZE || mImageHeight / sampleSize > PREVIEW_MAX_SIZE) {
+            sampleSize *= 2;
+        }
+
+        InputStream is = null;
+        try {
+            BitmapFactory.Options opt = new BitmapFactory.Options();
+            opt.inSampleSize = sampleSize;
+            opt.inPreferredConfig = Bitmap.Config.RGB_565;
+            is = source.open();
+            return BitmapFactory.decodeStream(is, null, opt);
+        } catch (Exception e) {
+            e.printStackTrace();
+        } catch (OutOfMemoryError e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                if (is != null) {
+                    is.close();
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        return null;
+    }
+
+    private void save() {
+        AtomicFile atomicFile = new AtomicFile(mFile);
+        FileOutputStream out = null;
+        try {
+            out = atomicFile.startWrite();
+            if (mBitmap.compress(Bitmap.CompressFormat.JPEG, PREVIEW_QUALITY, out)) {
+                atomicFile.finishWrite(out);
+            } else {
+                atomicFile.failWrite(out);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            atomicFile.failWrite(out);
+        }
+    }
+}
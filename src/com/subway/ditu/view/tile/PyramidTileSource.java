@@ -0,0 +1,115 @@
+/**
+ * PyramidTileSource.java
+ */
+package com.subway.ditu.view.tile;
+
+import java.io.File;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.subway.ditu.utils.MemoryGovernor;
+import com.subway.ditu.utils.image.BitmapPool;
+import com.subway.ditu.utils.image.ImageUtils;
+import com.subway.ditu.utils.image.PixelCache;
+
+/**
+ * 从持久化的分块金字塔读取分块，每个分块是一个独立的小文件
+ */
+public class PyramidTileSource implements TileSource {
+
+    private final TilePyramid mPyramid;
+    private Bitmap mBaseBitmap;
+
+    private PyramidTileSource(TilePyramid pyramid) {
+        mPyramid = pyramid;
+    }
+
+    /**
+     * 解码底图，需要在后台线程调用
+     * 
+     * @param pyramid 已经通过isValid检查的金字塔
+     * @return 失败返回null
+     */
+    public static PyramidTileSource newInstance(TilePyramid pyramid) {
+        if (pyramid == null) {
+            return null;
+        }
+
+        PyramidTileSource source = new PyramidTileSource(pyramid);
+        // 优先从像素缓存直接拷贝，不经过JPEG解码
+        source.mBaseBitmap = PixelCache.read(pyramid.getBaseRawFile(), null);
+        if (source.mBaseBitmap == null) {
+            source.mBaseBitmap = source.decodeFile(pyramid.getBaseFile());
+        }
+        if (source.mBaseBitmap == null) {
+            return null;
+        }
+        return source;
+    }
+
+    @Override
+    public int getWidth() {
+        return mPyramid.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return mPyramid.getHeight();
+    }
+
+    @Override
+    public Bitmap getBaseBitmap() {
+        return mBaseBitmap;
+    }
+
+    @Override
+    public int getBaseSampleSize() {
+        return mPyramid.getBaseSampleSize();
+    }
+
+    @Override
+    public Bitmap decodeTile(Tile tile, BitmapPool pool) {
+        File file = mPyramid.getTileFile(tile.sampleSize, tile.col, tile.row);
+        if (!file.exists()) {
+            return null;
+        }
+        return ImageUtils.loadBitmapWithReuse(file.getAbsolutePath(), tile.getBitmapWidth(), tile.getBitmapHeight(),
+                getConfig(), mPyramid.isDither(), pool);
+    }
+
+    /**
+     * 不透明的地图分块每像素2字节
+     */
+    private Bitmap.Config getConfig() {
+        return mPyramid.isOpaque() ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+    }
+
+    private Bitmap decodeFile(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            BitmapFactory.Options opt = new BitmapFactory.Options();
+            opt.inPreferredConfig = getConfig();
+            opt.inDither = mPyramid.isDither();
+            return BitmapFactory.decodeFile(file.getAbsolutePath(), opt);
+        } catch (Exception e) {
+            e.printStackTrace();
+        } catch (OutOfMemoryError e) {
+            e.printStackTrace();
+            MemoryGovernor.getInstance().onOutOfMemory();
+        }
+
+        return null;
+    }
+
+    @Override
+    public void recycle() {
+        if (mBaseBitmap != null) {
+            mBaseBitmap.recycle();
+            mBaseBitmap = null;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/**
+ * RegionTileSource.java
+ */
+package com.subway.ditu.view.tile;
+
+import java.io.InputStream;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.os.Build;
+import android.text.TextUtils;
+
+import com.subway.ditu.utils.MemoryGovernor;
+import com.subway.ditu.utils.image.BitmapPool;
+import com.subway.ditu.utils.image.ImageSource;
+import com.subway.ditu.utils.image.ImageUtils;
+
+/**
+ * 基于BitmapRegionDecoder的分块数据源，只解码可见区域
+ */
+public class RegionTileSource implements TileSource {
+
+    // 底图的最大边长
+    private static final int BASE_MAX_SIZE = 1024;
+    // 内存不足时底图采样率最多再加倍的次数
+    private static final int BASE_MAX_RETRY = 2;
+
+    // BitmapRegionDecoder从JELLY_BEAN开始支持inBitmap
+    private static final int REGION_REUSE_SDK = 16;
+
+    private BitmapRegionDecoder mDecoder;
+    // 从asset解码时，低版本的解码器直接读取asset，流要一直打开到recycle
+    private InputStream mStream;
+    private Bitmap mBaseBitmap;
+    private int mBaseSampleSize;
+    private int mWidth;
+    private int mHeight;
+
+    // 没有透明通道时底图和分块都用RGB_565，有平滑渐变时抖动
+    private boolean mOpaque = false;
+    private boolean mDither = false;
+
+    private RegionTileSource(BitmapRegionDecoder decoder, InputStream stream) {
+        mDecoder = decoder;
+        mStream = stream;
+        mWidth = decoder.getWidth();
+        mHeight = decoder.getHeight();
+    }
+
+    /**
+     * 打开图片并解码底图，比较耗时，需要在后台线程调用
+     * 
+     * @param fileFullPath
+     * @return 失败返回null
+     */
+    public static RegionTileSource newInstance(String fileFullPath) {
+        if (TextUtils.isEmpty(fileFullPath)) {
+            return null;
+        }
+        return newInstance(ImageSource.fromFile(fileFullPath));
+    }
+
+    /**
+     * 打开图片并解码底图，比较耗时，需要在后台线程调用
+     * 
+     * @param imageSource 文件或者asset
+     * @return 失败返回null
+     */
+    public static RegionTileSource newInstance(ImageSource imageSource) {
+        if (imageSource == null) {
+            return null;
+        }
+
+        InputStream stream = null;
+        try {
+            BitmapRegionDecoder decoder;
+            String path = imageSource.getFilePath();
+            if (path != null) {
+                decoder = BitmapRegionDecoder.newInstance(path, false);
+            } else {
+                // AssetInputStream直接交给native解码器，不会复制到文件系统或者Java堆
+                stream = imageSource.open();
+                decoder = BitmapRegionDecoder.newInstance(stream, false);
+            }
+            if (decoder != null) {
+                RegionTileSource source = new RegionTileSource(decoder, stream);
+                stream = null;
+                if (source.decodeBase()) {
+                    return source;
+                }
+                source.recycle();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } catch (OutOfMemoryError e) {
+            e.printStackTrace();
+        } finally {
+            closeStream(stream);
+        }
+
+        return null;
+    }
+
+    private static void closeStream(InputStream stream) {
+        try {
+            if (stream != null) {
+                stream.close();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private boolean decodeBase() {
+        int sampleSize = 1;
+        while (mWidth / sampleSize > BASE_MAX_SIZE || mHeight / sampleSize > BASE_MAX_SIZE) {
+            sampleSize *= 2;
+        }
+        // 内存压力大时底图本身就按更大的采样率解码，失败时再加倍重试
+        if (MemoryGovernor.getInstance().getLevel() >= MemoryGovernor.LEVEL_LOW) {
+            sampleSize *= 2;
+        }
+        Rect region = new Rect(0, 0, mWidth, mHeight);
+        for (int retry = 0; retry <= BASE_MAX_RETRY && mBaseBitmap == null; retry++) {
+            mBaseSampleSize = sampleSize;
+            mBaseBitmap = decodeRegion(region, sampleSize, null);
+            sampleSize *= 2;
+        }
+        if (mBaseBitmap == null) {
+            return false;
+        }
+
+        // 底图先按ARGB_8888解码，用来判断透明通道和渐变，再转换成RGB_565
+        mOpaque = !mBaseBitmap.hasAlpha();
+        if (mOpaque) {
+            mDither = ImageUtils.hasBandingRisk(mBaseBitmap);
+            mBaseBitmap = ImageUtils.toRgb565(mBaseBitmap, mDither);
+        }
+        return true;
+    }
+
+    /**
+     * 原图没有透明通道
+     */
+    public boolean isOpaque() {
+        return mOpaque;
+    }
+
+    /**
+     * 解码为RGB_565时需要抖动
+     */
+    public boolean isDither() {
+        return mDither;
+    }
+
+    private Bitmap.Config getTileConfig() {
+        return mOpaque ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+    }
+
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public Bitmap getBaseBitmap() {
+        return mBaseBitmap;
+    }
+
+    @Override
+    public int getBaseSampleSize() {
+        return mBaseSampleSize;
+    }
+
+    @Override
+    public Bitmap decodeTile(Tile tile, BitmapPool pool) {
+        Bitmap.Config config = getTileConfig();
+        if (pool == null || Build.VERSION.SDK_INT < REGION_REUSE_SDK) {
+            return decodeRegion(tile.region, tile.sampleSize, null, config, mDither);
+        }
+
+        Bitmap reuseBt = pool.get(tile.getBitmapWidth(), tile.getBitmapHeight(), config);
+        Bitmap bitmap = decodeRegion(tile.region, tile.sampleSize, reuseBt, config, mDither);
+        if (bitmap == null && reuseBt != null) {
+            pool.put(reuseBt);
+            bitmap = decodeRegion(tile.region, tile.sampleSize, null, config, mDither);
+        }
+        return bitmap;
+    }
+
+    /**
+     * 按采样率解码原图中的一块区域，ARGB_8888，切分金字塔时用它保证保存的分块没有量化损失
+     * 
+     * @param region 原图坐标
+     * @param sampleSize 2的幂
+     * @param reuseBt 解码到这个Bitmap中，可以为null
+     * @return 失败返回null
+     */
+    public Bitmap decodeRegion(Rect region, int sampleSize, Bitmap reuseBt) {
+        return decodeRegion(region, sampleSize, reuseBt, Bitmap.Config.ARGB_8888, false);
+    }
+
+    private synchronized Bitmap decodeRegion(Rect region, int sampleSize, Bitmap reuseBt, Bitmap.Config config,
+            boolean dither) {
+        BitmapRegionDecoder decoder = mDecoder;
+        if (decoder == null || decoder.isRecycled()) {
+            return null;
+        }
+
+        try {
+            BitmapFactory.Options opt = new BitmapFactory.Options();
+            opt.inSampleSize = sampleSize;
+            opt.inPreferredConfig = config;
+            opt.inDither = dither;
+            if (BitmapPool.isSupported()) {
+                opt.inMutable = true;
+                opt.inBitmap = reuseBt;
+            }
+            return decoder.decodeRegion(region, opt);
+        } catch (Exception e) {
+            e.printStackTrace();
+        } catch (OutOfMemoryError e) {
+            e.printStackTrace();
+            MemoryGovernor.getInstance().onOutOfMemory();
+        }
+
+        return null;
+    }
+
+    @Override
+    public synchronized void recycle() {
+        if (mDecoder != null) {
+            mDecoder.recycle();
+            mDecoder = null;
+        }
+        if (mBaseBitmap != null) {
+            mBaseBitmap.recycle();
+            mBaseBitmap = null;
+        }
+        closeStream(mStream);
+        mStream = null;
+    }
+}
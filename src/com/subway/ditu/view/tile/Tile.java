@@ -0,0 +1,85 @@
+/**
+ * Tile.java
+ */
+package com.subway.ditu.view.tile;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+import com.subway.ditu.utils.task.ScheduledTask;
+
+/**
+ * 一个分块：某个采样率下第col列、第row行的区域
+ */
+public class Tile {
+
+    public final int sampleSize;
+    public final int col;
+    public final int row;
+    public final long key;
+
+    // 原图坐标
+    public final Rect region = new Rect();
+
+    // 只在主线程读写
+    public Bitmap bitmap;
+
+    volatile boolean cancelled;
+
+    // 正在排队或解码的任务
+    ScheduledTask<?> task;
+
+    // 最近一次可见时的帧号，可见的分块不会被缓存淘汰
+    int visibleFrame;
+
+    // 是否是按拖动方向预取、还没进入视口的分块
+    boolean prefetch;
+
+    // TileCache的散列链表和访问顺序链表，避免每帧装箱和创建迭代器
+    Tile hashNext;
+    Tile lruPrev;
+    Tile lruNext;
+
+    public Tile(int sampleSize, int col, int row) {
+        this.sampleSize = sampleSize;
+        this.col = col;
+        this.row = row;
+        this.key = makeKey(sampleSize, col, row);
+    }
+
+    /**
+     * 按分块边长计算分块在原图中的区域，边缘分块会被裁剪
+     */
+    public void setRegion(int imageWidth, int imageHeight, int tileSize) {
+        int span = tileSize * sampleSize;
+        region.set(col * span, row * span, Math.min(imageWidth, (col + 1) * span),
+                Math.min(imageHeight, (row + 1) * span));
+    }
+
+    /**
+     * 解码后的宽度
+     */
+    public int getBitmapWidth() {
+        return (region.width() + sampleSize - 1) / sampleSize;
+    }
+
+    /**
+     * 解码后的高度
+     */
+    public int getBitmapHeight() {
+        return (region.height() + sampleSize - 1) / sampleSize;
+    }
+
+    public static long makeKey(int sampleSize, int col, int row) {
+        return ((long) sampleSize << 48) | ((long) col << 24) | row;
+    }
+
+    public long getKey() {
+        return key;
+    }
+
+    @Override
+    public String toString() {
+        return "Tile [sampleSize=" + sampleSize + ", col=" + col + ", row=" + row + ", region=" + region + "]";
+    }
+}
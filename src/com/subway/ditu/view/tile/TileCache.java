@@ -0,0 +1,259 @@
+/**
+ * TileCache.java
+ */
+package com.subway.ditu.view.tile;
+
+import android.graphics.Bitmap;
+
+import com.subway.ditu.utils.image.BitmapPool;
+
+/**
+ * 按访问顺序淘汰的分块缓存，容量按字节计算。被淘汰的Bitmap放入BitmapPool，供后续解码复用。 只在主线程访问。
+ * <p>
+ * 每帧都会查询，所以散列表和访问顺序链表直接用Tile中的字段串起来，查询、淘汰都不分配对象。
+ */
+public class TileCache {
+
+    // 复用池相对缓存的比例
+    private static final int POOL_DIVIDER = 4;
+
+    // 散列桶数量，2的幂
+    private static final int BUCKET_COUNT = 256;
+
+    private final Tile[] mBuckets = new Tile[BUCKET_COUNT];
+
+    // 访问顺序链表，头部最久未访问
+    private Tile mLruHead;
+    private Tile mLruTail;
+
+    private final BitmapPool mBitmapPool;
+
+    private int mMaxSize;
+    private int mSize;
+
+    // 当前帧号，这一帧可见的分块不会被淘汰
+    private int mFrame;
+
+    public TileCache(int maxSize) {
+        mMaxSize = maxSize;
+        mBitmapPool = new BitmapPool(maxSize / POOL_DIVIDER);
+    }
+
+    /**
+     * 内存压力变化时调整容量，变小时立即淘汰多出的分块和复用池中的Bitmap
+     */
+    public void setMaxSize(int maxSize) {
+        mMaxSize = maxSize;
+        trimToSize(maxSize);
+        mBitmapPool.setMaxSize(maxSize / POOL_DIVIDER);
+    }
+
+    public BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+
+    /**
+     * 开始新的一帧
+     */
+    public void nextFrame() {
+        mFrame++;
+    }
+
+    /**
+     * 取出分块并标记为当前帧可见
+     */
+    public Tile get(long key) {
+        Tile tile = find(key);
+        if (tile != null) {
+            tile.visibleFrame = mFrame;
+            unlinkLru(tile);
+            linkLru(tile);
+        }
+        return tile;
+    }
+
+    /**
+     * 取出分块，不改变访问顺序和可见状态
+     */
+    public Tile peek(long key) {
+        return find(key);
+    }
+
+    /**
+     * 是否已有这个分块，不改变访问顺序和可见状态
+     */
+    public boolean containsKey(long key) {
+        return find(key) != null;
+    }
+
+    /**
+     * 放入一个等待解码的分块
+     */
+    public void put(Tile tile) {
+        Tile old = find(tile.key);
+        if (old == tile) {
+            return;
+        }
+        if (old != null) {
+            remove(old);
+        }
+
+        tile.visibleFrame = mFrame;
+        int index = indexOf(tile.key);
+        tile.hashNext = mBuckets[index];
+        mBuckets[index] = tile;
+        linkLru(tile);
+    }
+
+    public boolean contains(Tile tile) {
+        return find(tile.key) == tile;
+    }
+
+    public void remove(Tile tile) {
+        if (contains(tile)) {
+            unlink(tile);
+            releaseTile(tile);
+        }
+    }
+
+    /**
+     * 分块解码完成，计入缓存大小
+     */
+    public void onTileLoaded(Tile tile, Bitmap bitmap) {
+        tile.bitmap = bitmap;
+        mSize += BitmapPool.getBitmapSize(bitmap);
+        trimToSize(mMaxSize);
+    }
+
+    /**
+     * 从最久未访问的分块开始淘汰，直到不超过maxSize，当前帧可见的分块保留
+     */
+    public void trimToSize(int maxSize) {
+        Tile tile = mLruHead;
+        while (mSize > maxSize && tile != null) {
+            Tile next = tile.lruNext;
+            if (tile.visibleFrame != mFrame || maxSize <= 0) {
+                unlink(tile);
+                releaseTile(tile);
+            }
+            tile = next;
+        }
+    }
+
+    /**
+     * 取消当前帧不可见、还没开始解码的分块
+     */
+    public void cancelInvisiblePending() {
+        Tile tile = mLruHead;
+        while (tile != null) {
+            Tile next = tile.lruNext;
+            if (tile.bitmap == null && tile.visibleFrame != mFrame && !tile.prefetch) {
+                unlink(tile);
+                releaseTile(tile);
+            }
+            tile = next;
+        }
+    }
+
+    /**
+     * 取消所有等待解码的分块，并把Bitmap放入复用池
+     */
+    public void clear() {
+        Tile tile = mLruHead;
+        while (tile != null) {
+            Tile next = tile.lruNext;
+            tile.hashNext = null;
+            tile.lruPrev = null;
+            tile.lruNext = null;
+            releaseTile(tile);
+            tile = next;
+        }
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets[i] = null;
+        }
+        mLruHead = null;
+        mLruTail = null;
+        mSize = 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int maxSize() {
+        return mMaxSize;
+    }
+
+    private static int indexOf(long key) {
+        int h = (int) (key ^ (key >>> 32));
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return h & (BUCKET_COUNT - 1);
+    }
+
+    private Tile find(long key) {
+        Tile tile = mBuckets[indexOf(key)];
+        while (tile != null && tile.key != key) {
+            tile = tile.hashNext;
+        }
+        return tile;
+    }
+
+    private void unlink(Tile tile) {
+        int index = indexOf(tile.key);
+        Tile prev = null;
+        Tile cur = mBuckets[index];
+        while (cur != null && cur != tile) {
+            prev = cur;
+            cur = cur.hashNext;
+        }
+        if (cur != null) {
+            if (prev == null) {
+                mBuckets[index] = cur.hashNext;
+            } else {
+                prev.hashNext = cur.hashNext;
+            }
+        }
+        tile.hashNext = null;
+        unlinkLru(tile);
+    }
+
+    private void linkLru(Tile tile) {
+        tile.lruPrev = mLruTail;
+        tile.lruNext = null;
+        if (mLruTail != null) {
+            mLruTail.lruNext = tile;
+        } else {
+            mLruHead = tile;
+        }
+        mLruTail = tile;
+    }
+
+    private void unlinkLru(Tile tile) {
+        if (tile.lruPrev != null) {
+            tile.lruPrev.lruNext = tile.lruNext;
+        } else if (mLruHead == tile) {
+            mLruHead = tile.lruNext;
+        }
+        if (tile.lruNext != null) {
+            tile.lruNext.lruPrev = tile.lruPrev;
+        } else if (mLruTail == tile) {
+            mLruTail = tile.lruPrev;
+        }
+        tile.lruPrev = null;
+        tile.lruNext = null;
+    }
+
+    private void releaseTile(Tile tile) {
+        tile.cancelled = true;
+        if (tile.task != null) {
+            tile.task.cancel();
+            tile.task = null;
+        }
+        if (tile.bitmap != null) {
+            mSize -= BitmapPool.getBitmapSize(tile.bitmap);
+            mBitmapPool.put(tile.bitmap);
+            tile.bitmap = null;
+        }
+    }
+}
@@ -0,0 +1,396 @@
+/**
+ * TileManager.java
+ */
+package com.subway.ditu.view.tile;
+
+import java.util.ArrayList;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import com.subway.ditu.utils.MemoryGovernor;
+import com.subway.ditu.utils.task.ScheduledTask;
+import com.subway.ditu.utils.task.TaskScheduler;
+import com.subway.ditu.view.Viewport;
+
+/**
+ * 按当前缩放比例选择采样率，只解码并绘制视口内的分块。分块通过TaskScheduler解码，可见的优先于预取的。 所有方法都在主线程调用。
+ */
+public class TileManager {
+
+    // 分块解码后的边长
+    public static final int TILE_SIZE = 256;
+
+    // 按当前拖动速度预测多久之后的视口
+    private static final float PREFETCH_TIME = 0.4f;
+
+    // 低于这个速度(像素/秒)不预取
+    private static final float PREFETCH_MIN_VELOCITY = 200f;
+
+    public static interface OnTileLoadListener {
+        public void onTileLoaded(Tile tile);
+    }
+
+    private TileSource mSource;
+    private OnTileLoadListener mListener;
+
+    private final TileCache mTileCache;
+
+    // 当前帧可见的分块
+    private final ArrayList<Tile> mVisibleTiles = new ArrayList<Tile>();
+    private int mSampleSize;
+
+    private final RectF mTileRectF = new RectF();
+    private final RectF mVisibleRectF = new RectF();
+    private final Rect mSrcRect = new Rect();
+
+    // 可见分块的列、行范围，闭区间
+    private final Rect mRange = new Rect();
+
+    // 拖动速度，像素/秒
+    private float mVelocityX;
+    private float mVelocityY;
+
+    // 已经提交、还没解码完成的预取分块
+    private final ArrayList<Tile> mPrefetchTiles = new ArrayList<Tile>();
+
+    private final TaskScheduler mScheduler = TaskScheduler.getInstance();
+
+    // 任务key的前缀，区分不同TileManager的同一个分块
+    private final String mTaskKeyPrefix = "tile@" + System.identityHashCode(this) + ":";
+
+    /**
+     * @param source
+     * @param cacheSize 分块缓存的字节数
+     * @param listener
+     */
+    public TileManager(TileSource source, int cacheSize, OnTileLoadListener listener) {
+        mSource = source;
+        mListener = listener;
+        mTileCache = new TileCache(cacheSize);
+        MemoryGovernor.getInstance().addListener(mLevelListener);
+    }
+
+    // 内存压力变化时缩小或者恢复缓存，最严重时丢掉预取的分块和复用池
+    private final MemoryGovernor.OnLevelChangeListener mLevelListener = new MemoryGovernor.OnLevelChangeListener() {
+
+        @Override
+        public void onLevelChanged(int level) {
+            if (mSource == null) {
+                return;
+            }
+            mTileCache.setMaxSize(MemoryGovernor.getInstance().getTileCacheBudget());
+            if (level >= MemoryGovernor.LEVEL_CRITICAL) {
+                cancelPrefetch();
+                mTileCache.getBitmapPool().clear();
+            }
+        }
+    };
+
+    public TileSource getSource() {
+        return mSource;
+    }
+
+    /**
+     * 屏幕旋转后交给新的View时更换回调，已经缓存的分块继续使用
+     */
+    public void setOnTileLoadListener(OnTileLoadListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * 设置当前拖动速度，用于预取视口即将移入的分块。方向反转时取消已经排队的预取。
+     * 
+     * @param velocityX 图片移动的速度，像素/秒，停止拖动时为0
+     * @param velocityY
+     */
+    public void setVelocity(float velocityX, float velocityY) {
+        if (velocityX * mVelocityX + velocityY * mVelocityY < 0) {
+            cancelPrefetch();
+        }
+        mVelocityX = velocityX;
+        mVelocityY = velocityY;
+    }
+
+    /**
+     * 根据当前的变换计算可见分块，缺少的分块提交解码
+     * 
+     * @param viewport 原图到View的变换
+     * @param zooming 正在缩放时不提交新的解码，使用已经缓存的、分辨率不高于需要的最接近层级
+     */
+    public void update(Viewport viewport, boolean zooming) {
+        if (mSource == null || viewport.isEmpty()) {
+            return;
+        }
+
+        float scale = viewport.getScale();
+        int sampleSize = computeSampleSize(scale);
+        if (sampleSize >= mSource.getBaseSampleSize()) {
+            // 底图已经足够清晰
+            sampleSize = 0;
+        }
+
+        mTileCache.nextFrame();
+        mVisibleTiles.clear();
+
+        // 原图上的可见区域
+        viewport.getVisibleImageRect(mVisibleRectF);
+        float left = mVisibleRectF.left;
+        float top = mVisibleRectF.top;
+        float right = mVisibleRectF.right;
+        float bottom = mVisibleRectF.bottom;
+
+        if (zooming && sampleSize > 0) {
+            sampleSize = findCachedSampleSize(sampleSize, left, top, right, bottom);
+        }
+        mSampleSize = sampleSize;
+        if (sampleSize == 0) {
+            mTileCache.cancelInvisiblePending();
+            return;
+        }
+
+        computeRange(sampleSize, left, top, right, bottom);
+        for (int row = mRange.top; row <= mRange.bottom; row++) {
+            for (int col = mRange.left; col <= mRange.right; col++) {
+                Tile tile = mTileCache.get(Tile.makeKey(sampleSize, col, row));
+                if (tile == null) {
+                    if (zooming) {
+                        continue;
+                    }
+                    tile = new Tile(sampleSize, col, row);
+                    tile.setRegion(mSource.getWidth(), mSource.getHeight(), TILE_SIZE);
+                    mTileCache.put(tile);
+                    enqueue(tile, false);
+                } else if (tile.prefetch) {
+                    // 预取的分块已经进入视口，提升优先级
+                    tile.prefetch = false;
+                    if (tile.task != null) {
+                        mScheduler.setPriority(tile.task.getKey(), TaskScheduler.PRIORITY_VISIBLE);
+                    }
+                }
+                mVisibleTiles.add(tile);
+            }
+        }
+
+        if (!zooming
+                && (Math.abs(mVelocityX) > PREFETCH_MIN_VELOCITY || Math.abs(mVelocityY) > PREFETCH_MIN_VELOCITY)) {
+            // 图片向速度方向移动，视口在原图上向反方向移动，预测的位移不超过一个视口
+            float dx = -mVelocityX * PREFETCH_TIME / scale;
+            float dy = -mVelocityY * PREFETCH_TIME / scale;
+            dx = Math.max(-(right - left), Math.min(right - left, dx));
+            dy = Math.max(-(bottom - top), Math.min(bottom - top, dy));
+            prefetch(sampleSize, left + dx, top + dy, right + dx, bottom + dy);
+        }
+        mTileCache.cancelInvisiblePending();
+    }
+
+    /**
+     * 计算原图区域覆盖的分块行列，结果放在mRange中
+     */
+    private void computeRange(int sampleSize, float left, float top, float right, float bottom) {
+        int tileSpan = TILE_SIZE * sampleSize;
+        mRange.set(Math.max(0, (int) (left / tileSpan)), Math.max(0, (int) (top / tileSpan)),
+                Math.min((mSource.getWidth() - 1) / tileSpan, (int) ((right - 1) / tileSpan)),
+                Math.min((mSource.getHeight() - 1) / tileSpan, (int) ((bottom - 1) / tileSpan)));
+    }
+
+    /**
+     * 从需要的采样率开始向低分辨率查找，返回可见分块全部已解码的层级，都没有时返回0，只画底图
+     */
+    private int findCachedSampleSize(int sampleSize, float left, float top, float right, float bottom) {
+        for (; sampleSize < mSource.getBaseSampleSize(); sampleSize *= 2) {
+            computeRange(sampleSize, left, top, right, bottom);
+            boolean loaded = true;
+            for (int row = mRange.top; loaded && row <= mRange.bottom; row++) {
+                for (int col = mRange.left; col <= mRange.right; col++) {
+                    Tile tile = mTileCache.peek(Tile.makeKey(sampleSize, col, row));
+                    if (tile == null || tile.bitmap == null) {
+                        loaded = false;
+                        break;
+                    }
+                }
+            }
+            if (loaded) {
+                return sampleSize;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * 预取原图区域内还没有缓存的分块
+     */
+    private void prefetch(int sampleSize, float left, float top, float right, float bottom) {
+        computeRange(sampleSize, left, top, right, bottom);
+        for (int row = mRange.top; row <= mRange.bottom; row++) {
+            for (int col = mRange.left; col <= mRange.right; col++) {
+                if (!mTileCache.containsKey(Tile.makeKey(sampleSize, col, row))) {
+                    Tile tile = new Tile(sampleSize, col, row);
+                    tile.setRegion(mSource.getWidth(), mSource.getHeight(), TILE_SIZE);
+                    tile.prefetch = true;
+                    mTileCache.put(tile);
+                    enqueue(tile, true);
+                }
+            }
+        }
+    }
+
+    /**
+     * 取消所有还没解码完成的预取
+     */
+    private void cancelPrefetch() {
+        for (int i = 0, size = mPrefetchTiles.size(); i < size; i++) {
+            Tile tile = mPrefetchTiles.get(i);
+            if (tile.prefetch && tile.bitmap == null) {
+                mTileCache.remove(tile);
+            }
+        }
+        mPrefetchTiles.clear();
+    }
+
+    private void enqueue(Tile tile, boolean prefetch) {
+        tile.prefetch = prefetch;
+        if (prefetch) {
+            mPrefetchTiles.add(tile);
+        }
+        tile.task = new TileDecodeTask(tile, prefetch ? TaskScheduler.PRIORITY_PREFETCH
+                : TaskScheduler.PRIORITY_VISIBLE);
+        mScheduler.submit(tile.task);
+    }
+
+    /**
+     * 先画底图，再把已经解码的分块画在上面。还没解码的分块用缓存中更低分辨率的上层分块对应的部分代替。
+     */
+    public void draw(Canvas canvas, Viewport viewport, Paint paint) {
+        if (mSource == null) {
+            return;
+        }
+
+        Bitmap base = mSource.getBaseBitmap();
+        if (base != null && !base.isRecycled()) {
+            viewport.getImageRect(mTileRectF);
+            canvas.drawBitmap(base, null, mTileRectF, paint);
+        }
+
+        if (mSampleSize == 0) {
+            return;
+        }
+
+        for (int i = 0, size = mVisibleTiles.size(); i < size; i++) {
+            Tile tile = mVisibleTiles.get(i);
+            mTileRectF.set(viewport.imageToViewX(tile.region.left), viewport.imageToViewY(tile.region.top),
+                    viewport.imageToViewX(tile.region.right), viewport.imageToViewY(tile.region.bottom));
+            if (tile.bitmap != null && !tile.bitmap.isRecycled()) {
+                canvas.drawBitmap(tile.bitmap, null, mTileRectF, paint);
+            } else {
+                drawFallback(canvas, tile, paint);
+            }
+        }
+    }
+
+    private void drawFallback(Canvas canvas, Tile tile, Paint paint) {
+        int col = tile.col;
+        int row = tile.row;
+        for (int sampleSize = tile.sampleSize * 2; sampleSize < mSource.getBaseSampleSize(); sampleSize *= 2) {
+            col /= 2;
+            row /= 2;
+            Tile parent = mTileCache.peek(Tile.makeKey(sampleSize, col, row));
+            if (parent != null && parent.bitmap != null && !parent.bitmap.isRecycled()) {
+                // 分块区域在上层分块Bitmap中的位置
+                mSrcRect.set((tile.region.left - parent.region.left) / sampleSize,
+                        (tile.region.top - parent.region.top) / sampleSize,
+                        (tile.region.right - parent.region.left) / sampleSize,
+                        (tile.region.bottom - parent.region.top) / sampleSize);
+                canvas.drawBitmap(parent.bitmap, mSrcRect, mTileRectF, paint);
+                return;
+            }
+        }
+    }
+
+    /**
+     * 取消所有解码任务并释放所有分块和数据源
+     */
+    public void release() {
+        MemoryGovernor.getInstance().removeListener(mLevelListener);
+        mScheduler.cancelAll(this);
+        mVisibleTiles.clear();
+        mPrefetchTiles.clear();
+        mTileCache.clear();
+        mTileCache.getBitmapPool().clear();
+
+        if (mSource != null) {
+            mSource.recycle();
+            mSource = null;
+        }
+        mListener = null;
+    }
+
+    /**
+     * 采样率取不大于 1/scale 的最大2的幂，保证分块解码后的像素不少于屏幕像素
+     */
+    static int computeSampleSize(float scale) {
+        int sampleSize = 1;
+        while (sampleSize * 2 * scale <= 1.0f) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private void onTileDecoded(Tile tile, Bitmap decoded) {
+        tile.task = null;
+        if (tile.prefetch) {
+            mPrefetchTiles.remove(tile);
+        }
+
+        if (decoded == null) {
+            // 解码失败，移除后下次update时重试
+            if (!tile.cancelled) {
+                mTileCache.remove(tile);
+            }
+            return;
+        }
+
+        if (tile.cancelled) {
+            mTileCache.getBitmapPool().put(decoded);
+            return;
+        }
+
+        mTileCache.onTileLoaded(tile, decoded);
+        if (mListener != null) {
+            mListener.onTileLoaded(tile);
+        }
+    }
+
+    private class TileDecodeTask extends ScheduledTask<Bitmap> {
+        private final Tile mTile;
+
+        TileDecodeTask(Tile tile, int priority) {
+            super(mTaskKeyPrefix + tile.getKey(), priority, TileManager.this);
+            mTile = tile;
+        }
+
+        @Override
+        protected Bitmap doInBackground() {
+            TileSource source = mSource;
+            if (mTile.cancelled || source == null) {
+                return null;
+            }
+            return source.decodeTile(mTile, mTileCache.getBitmapPool());
+        }
+
+        @Override
+        protected void onPostExecute(Bitmap result) {
+            onTileDecoded(mTile, result);
+        }
+
+        @Override
+        protected void onCancelled(Bitmap result) {
+            if (result != null) {
+                mTileCache.getBitmapPool().put(result);
+            }
+        }
+    }
+}
@@ -0,0 +1,318 @@
+/**
+ * TilePyramid.java
+ */
+package com.subway.ditu.view.tile;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.Properties;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import com.subway.ditu.utils.AtomicFile;
+import com.subway.ditu.utils.FileOperatorHelper;
+import com.subway.ditu.utils.FileUtil;
+import com.subway.ditu.utils.image.ImageSource;
+import com.subway.ditu.utils.image.PixelCache;
+import com.subway.ditu.utils.task.ScheduledTask;
+
+/**
+ * 持久化的分块金字塔：按2的幂采样率预先切好的分块，存放在目录下
+ * 
+ * <pre>
+ * pyramid.properties  格式版本、尺寸及像素格式，最后写入
+ * build.properties    切分中途的记录，切分完成后删除
+ * base.jpg            底图
+ * base.raw            底图解码后的像素，见PixelCache
+ * 1/0_0.jpg           采样率/列_行
+ * </pre>
+ * 
+ * 所有文件都通过AtomicFile写入，存在的分块一定是完整的。切分被中断(进程被杀掉)后，原图没变时下次跳过已有的分块继续切分。
+ */
+public class TilePyramid {
+    private static final String TAG = "TilePyramid";
+    private static final boolean DEBUG = false;
+
+    // 金字塔文件格式变化时加一，旧的金字塔会被重建
+    public static final int FORMAT_VERSION = 3;
+
+    private static final String INFO_FILE_NAME = "pyramid.properties";
+    private static final String BUILD_FILE_NAME = "build.properties";
+    private static final String BASE_FILE_NAME = "base.jpg";
+    private static final String BASE_RAW_FILE_NAME = "base.raw";
+    private static final String TILE_EXT = ".jpg";
+    private static final int TILE_QUALITY = 90;
+
+    private static final String KEY_FORMAT = "format";
+    private static final String KEY_WIDTH = "width";
+    private static final String KEY_HEIGHT = "height";
+    private static final String KEY_TILE_SIZE = "tileSize";
+    private static final String KEY_BASE_SAMPLE_SIZE = "baseSampleSize";
+    private static final String KEY_OPAQUE = "opaque";
+    private static final String KEY_DITHER = "dither";
+    private static final String KEY_SOURCE_NAME = "source.name";
+    private static final String KEY_SOURCE_LENGTH = "source.length";
+    private static final String KEY_SOURCE_MODIFIED = "source.modified";
+
+    private final File mDir;
+
+    private int mWidth;
+    private int mHeight;
+    private int mBaseSampleSize;
+    private boolean mOpaque;
+    private boolean mDither;
+
+    public TilePyramid(File dir) {
+        mDir = dir;
+    }
+
+    public File getDir() {
+        return mDir;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getBaseSampleSize() {
+        return mBaseSampleSize;
+    }
+
+    /**
+     * 原图没有透明通道，分块解码为RGB_565
+     */
+    public boolean isOpaque() {
+        return mOpaque;
+    }
+
+    /**
+     * 分块解码为RGB_565时需要抖动
+     */
+    public boolean isDither() {
+        return mDither;
+    }
+
+    public File getBaseFile() {
+        return new File(mDir, BASE_FILE_NAME);
+    }
+
+    public File getBaseRawFile() {
+        return new File(mDir, BASE_RAW_FILE_NAME);
+    }
+
+    public File getTileFile(int sampleSize, int col, int row) {
+        return new File(mDir, sampleSize + File.separator + col + "_" + row + TILE_EXT);
+    }
+
+    /**
+     * 读取金字塔的属性并检查是否完整，只读取一个很小的属性文件。是否由当前的原图生成由CacheManifest检查。
+     * 
+     * @return
+     */
+    public boolean isValid() {
+        Properties info = readProperties(INFO_FILE_NAME);
+        if (info == null) {
+            return false;
+        }
+
+        try {
+            if (Integer.parseInt(info.getProperty(KEY_FORMAT)) != FORMAT_VERSION
+                    || Integer.parseInt(info.getProperty(KEY_TILE_SIZE)) != TileManager.TILE_SIZE) {
+                return false;
+            }
+
+            mWidth = Integer.parseInt(info.getProperty(KEY_WIDTH));
+            mHeight = Integer.parseInt(info.getProperty(KEY_HEIGHT));
+            mBaseSampleSize = Integer.parseInt(info.getProperty(KEY_BASE_SAMPLE_SIZE));
+            mOpaque = Boolean.parseBoolean(info.getProperty(KEY_OPAQUE));
+            mDither = Boolean.parseBoolean(info.getProperty(KEY_DITHER));
+            return mWidth > 0 && mHeight > 0 && mBaseSampleSize > 0 && getBaseFile().exists();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        return false;
+    }
+
+    /**
+     * 从原图切分全部层级，比较耗时，需要在后台线程调用。上次由同一张原图切分到一半时继续切分，否则重新开始。
+     * 
+     * @param source 原图，文件或者asset
+     * @param task 所在的任务，被取消时停止切分，可以为null
+     * @return
+     */
+    public boolean build(ImageSource source, ScheduledTask<?> task) {
+        if (source == null || !source.exists()) {
+            return false;
+        }
+
+        Properties build = new Properties();
+        build.setProperty(KEY_FORMAT, String.valueOf(FORMAT_VERSION));
+        build.setProperty(KEY_TILE_SIZE, String.valueOf(TileManager.TILE_SIZE));
+        build.setProperty(KEY_SOURCE_NAME, source.getName());
+        build.setProperty(KEY_SOURCE_LENGTH, String.valueOf(source.length()));
+        build.setProperty(KEY_SOURCE_MODIFIED, String.valueOf(source.lastModified()));
+        boolean resume = build.equals(readProperties(BUILD_FILE_NAME));
+        if (!resume) {
+            clear();
+            if (!mDir.mkdirs() || !writeProperties(BUILD_FILE_NAME, build)) {
+                return false;
+            }
+        }
+        // 金字塔完成后才重新写入
+        new File(mDir, INFO_FILE_NAME).delete();
+
+        long curTime = System.currentTimeMillis();
+        RegionTileSource regionSource = RegionTileSource.newInstance(source);
+        if (regionSource == null) {
+            return false;
+        }
+
+        try {
+            int width = regionSource.getWidth();
+            int height = regionSource.getHeight();
+            int baseSampleSize = regionSource.getBaseSampleSize();
+            if (!saveBitmap(regionSource.getBaseBitmap(), getBaseFile(), false)) {
+                return false;
+            }
+            // 像素缓存失败时退回解码base.jpg，不影响金字塔
+            PixelCache.write(getBaseRawFile(), regionSource.getBaseBitmap(), null);
+
+            int tileSize = TileManager.TILE_SIZE;
+            for (int sampleSize = 1; sampleSize < baseSampleSize; sampleSize *= 2) {
+                File levelDir = new File(mDir, String.valueOf(sampleSize));
+                if (!levelDir.isDirectory() && !levelDir.mkdirs()) {
+                    return false;
+                }
+
+                int span = tileSize * sampleSize;
+                int cols = (width + span - 1) / span;
+                int rows = (height + span - 1) / span;
+                for (int row = 0; row < rows; row++) {
+                    if (task != null && task.isCancelled()) {
+                        return false;
+                    }
+                    for (int col = 0; col < cols; col++) {
+                        File tileFile = getTileFile(sampleSize, col, row);
+                        if (resume && tileFile.exists()) {
+                            continue;
+                        }
+                        Tile tile = new Tile(sampleSize, col, row);
+                        tile.setRegion(width, height, tileSize);
+                        // 按ARGB_8888解码后保存，读取时再按原图的格式解码
+                        Bitmap bitmap = regionSource.decodeRegion(tile.region, sampleSize, null);
+                        if (!saveBitmap(bitmap, tileFile, true)) {
+                            return false;
+                        }
+                    }
+                }
+            }
+
+            Properties info = new Properties();
+            info.setProperty(KEY_FORMAT, String.valueOf(FORMAT_VERSION));
+            info.setProperty(KEY_WIDTH, String.valueOf(width));
+            info.setProperty(KEY_HEIGHT, String.valueOf(height));
+            info.setProperty(KEY_TILE_SIZE, String.valueOf(tileSize));
+            info.setProperty(KEY_BASE_SAMPLE_SIZE, String.valueOf(baseSampleSize));
+            info.setProperty(KEY_OPAQUE, String.valueOf(regionSource.isOpaque()));
+            info.setProperty(KEY_DITHER, String.valueOf(regionSource.isDither()));
+            if (!writeProperties(INFO_FILE_NAME, info)) {
+                return false;
+            }
+            new File(mDir, BUILD_FILE_NAME).delete();
+
+            mWidth = width;
+            mHeight = height;
+            mBaseSampleSize = baseSampleSize;
+            mOpaque = regionSource.isOpaque();
+            mDither = regionSource.isDither();
+            if (DEBUG) {
+                Log.d(TAG, "[[build]] resume = " + resume + " cost = " + (System.currentTimeMillis() - curTime)
+                        + "ms");
+            }
+            return true;
+        } finally {
+            regionSource.recycle();
+        }
+    }
+
+    /**
+     * 删除整个金字塔
+     */
+    public void clear() {
+        FileOperatorHelper.DeleteFile(FileUtil.getFileInfo(mDir.getAbsolutePath()));
+    }
+
+    private boolean saveBitmap(Bitmap bitmap, File file, boolean recycle) {
+        if (bitmap == null) {
+            return false;
+        }
+
+        AtomicFile atomicFile = new AtomicFile(file);
+        FileOutputStream out = null;
+        try {
+            out = atomicFile.startWrite();
+            if (bitmap.compress(Bitmap.CompressFormat.JPEG, TILE_QUALITY, out)) {
+                return atomicFile.finishWrite(out);
+            }
+            atomicFile.failWrite(out);
+        } catch (Exception e) {
+            e.printStackTrace();
+            atomicFile.failWrite(out);
+        } finally {
+            if (recycle) {
+                bitmap.recycle();
+            }
+        }
+
+        return false;
+    }
+
+    private Properties readProperties(String name) {
+        File infoFile = new File(mDir, name);
+        if (!infoFile.exists()) {
+            return null;
+        }
+
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(infoFile);
+            Properties info = new Properties();
+            info.load(in);
+            return info;
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                if (in != null) {
+                    in.close();
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        return null;
+    }
+
+    private boolean writeProperties(String name, Properties properties) {
+        AtomicFile atomicFile = new AtomicFile(new File(mDir, name));
+        FileOutputStream out = null;
+        try {
+            out = atomicFile.startWrite();
+            properties.store(out, null);
+            return atomicFile.finishWrite(out);
+        } catch (Exception e) {
+            e.printStackTrace();
+            atomicFile.failWrite(out);
+        }
+
+        return false;
+    }
+}
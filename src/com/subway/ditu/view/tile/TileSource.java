@@ -0,0 +1,45 @@
+/**
+ * TileSource.java
+ */
+package com.subway.ditu.view.tile;
+
+import android.graphics.Bitmap;
+
+import com.subway.ditu.utils.image.BitmapPool;
+
+/**
+ * 分块渲染的图片数据源，坐标均为原图像素坐标
+ */
+public interface TileSource {
+
+    /**
+     * 原图宽度
+     */
+    public int getWidth();
+
+    /**
+     * 原图高度
+     */
+    public int getHeight();
+
+    /**
+     * 整张图的低分辨率底图，分块还未解码出来时用它填充
+     */
+    public Bitmap getBaseBitmap();
+
+    /**
+     * 底图相对原图的采样率
+     */
+    public int getBaseSampleSize();
+
+    /**
+     * 按分块的采样率解码分块区域，在后台线程调用
+     * 
+     * @param tile
+     * @param pool 优先复用池中的Bitmap，可以为null
+     * @return 失败返回null
+     */
+    public Bitmap decodeTile(Tile tile, BitmapPool pool);
+
+    public void recycle();
+}
@@ -0,0 +1,193 @@
+/**
+ * CacheManifestTest.java
+ */
+package com.subway.ditu.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import junit.framework.TestCase;
+
+import com.subway.ditu.utils.image.ImageSource;
+
+/**
+ * 检查原图变化时缓存清单的判断：只改修改时间或应用版本时缓存继续有效，内容变化时全部作废
+ */
+public class CacheManifestTest extends TestCase {
+    private static final String PYRAMID = "pyramid";
+    private static final String PREVIEW = "preview";
+
+    private static int sSourceId = 0;
+
+    private File mFile;
+    private String mName;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("manifest", ".properties");
+        mFile.delete();
+        // ImageMetadataCache按名称缓存，每个测试用不同的名称
+        mName = "test:map" + (sSourceId++);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        new AtomicFile(mFile).delete();
+        super.tearDown();
+    }
+
+    public void testFirstVerifyRecordsSource() {
+        CacheManifest manifest = new CacheManifest(mFile);
+
+        assertTrue(manifest.verifySource(new FakeSource(mName, jpeg(4700, 3107), 1000), 1));
+        assertEquals(4700, manifest.getSourceWidth());
+        assertEquals(3107, manifest.getSourceHeight());
+        assertFalse(manifest.isArtifactValid(PYRAMID, 1));
+        assertTrue(mFile.exists());
+    }
+
+    public void testArtifactsPersist() {
+        FakeSource source = new FakeSource(mName, jpeg(4700, 3107), 1000);
+        CacheManifest manifest = new CacheManifest(mFile);
+        manifest.verifySource(source, 1);
+        manifest.putArtifact(PYRAMID, 2);
+        manifest.putArtifact(PREVIEW, 1);
+
+        assertTrue(manifest.isArtifactValid(PYRAMID, 2));
+        // 格式版本不同时无效
+        assertFalse(manifest.isArtifactValid(PYRAMID, 3));
+
+        CacheManifest reloaded = new CacheManifest(mFile);
+        assertTrue(reloaded.verifySource(source, 1));
+        assertTrue(reloaded.isArtifactValid(PYRAMID, 2));
+        assertTrue(reloaded.isArtifactValid(PREVIEW, 1));
+    }
+
+    public void testRemoveArtifact() {
+        CacheManifest manifest = new CacheManifest(mFile);
+        manifest.verifySource(new FakeSource(mName, jpeg(4700, 3107), 1000), 1);
+        manifest.putArtifact(PYRAMID, 2);
+        manifest.putArtifact(PREVIEW, 1);
+
+        manifest.removeArtifact(PYRAMID);
+        assertFalse(manifest.isArtifactValid(PYRAMID, 2));
+        assertTrue(manifest.isArtifactValid(PREVIEW, 1));
+        assertFalse(new CacheManifest(mFile).isArtifactValid(PYRAMID, 2));
+    }
+
+    public void testSameContentKeepsArtifacts() {
+        byte[] data = jpeg(4700, 3107);
+        CacheManifest manifest = new CacheManifest(mFile);
+        manifest.verifySource(new FakeSource(mName, data, 1000), 1);
+        manifest.putArtifact(PYRAMID, 2);
+
+        // 升级应用：APK的修改时间和版本变了，地图内容相同
+        CacheManifest upgraded = new CacheManifest(mFile);
+        assertTrue(upgraded.verifySource(new FakeSource(mName, data.clone(), 2000), 2));
+        assertTrue(upgraded.isArtifactValid(PYRAMID, 2));
+    }
+
+    public void testChangedContentDropsArtifacts() {
+        CacheManifest manifest = new CacheManifest(mFile);
+        manifest.verifySource(new FakeSource(mName, jpeg(4700, 3107), 1000), 1);
+        manifest.putArtifact(PYRAMID, 2);
+        manifest.putArtifact(PREVIEW, 1);
+
+        CacheManifest changed = new CacheManifest(mFile);
+        assertTrue(changed.verifySource(new FakeSource(mName, jpeg(5000, 3300), 2000), 1));
+        assertFalse(changed.isArtifactValid(PYRAMID, 2));
+        assertFalse(changed.isArtifactValid(PREVIEW, 1));
+        assertEquals(5000, changed.getSourceWidth());
+        assertEquals(3300, changed.getSourceHeight());
+    }
+
+    public void testInvalidSourceDropsArtifacts() {
+        CacheManifest manifest = new CacheManifest(mFile);
+        manifest.verifySource(new FakeSource(mName, jpeg(4700, 3107), 1000), 1);
+        manifest.putArtifact(PYRAMID, 2);
+
+        CacheManifest broken = new CacheManifest(mFile);
+        assertFalse(broken.verifySource(new FakeSource(mName, new byte[] { 1, 2, 3, 4, 5 }, 2000), 1));
+        assertFalse(broken.isArtifactValid(PYRAMID, 2));
+        assertTrue(broken.getSourceWidth() <= 0);
+    }
+
+    public void testVerifyOnlyOnce() {
+        CacheManifest manifest = new CacheManifest(mFile);
+        assertTrue(manifest.verifySource(new FakeSource(mName, jpeg(4700, 3107), 1000), 1));
+        manifest.putArtifact(PYRAMID, 2);
+
+        // 同一个清单对象不再检查，原图在运行中变化也不作废缓存
+        assertTrue(manifest.verifySource(new FakeSource(mName, jpeg(5000, 3300), 2000), 1));
+        assertTrue(manifest.isArtifactValid(PYRAMID, 2));
+    }
+
+    /**
+     * 只有文件头和SOF的JPEG，宽高不同时长度也不同
+     */
+    private static byte[] jpeg(int width, int height) {
+        int padding = width % 7;
+        byte[] data = new byte[4 + 19 + padding + 2];
+        int i = 0;
+        data[i++] = (byte) 0xFF;
+        data[i++] = (byte) 0xD8;
+        data[i++] = (byte) 0xFF;
+        data[i++] = (byte) 0xC0;
+        data[i++] = 0;
+        data[i++] = 17;
+        data[i++] = 8;
+        data[i++] = (byte) (height >> 8);
+        data[i++] = (byte) height;
+        data[i++] = (byte) (width >> 8);
+        data[i++] = (byte) width;
+        i += 10 + padding;
+        data[i++] = (byte) 0xFF;
+        data[i++] = (byte) 0xDA;
+        return data;
+    }
+
+    private static class FakeSource extends ImageSource {
+        private final String mName;
+        private final byte[] mData;
+        private final long mModified;
+
+        FakeSource(String name, byte[] data, long modified) {
+            mName = name;
+            mData = data;
+            mModified = modified;
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            return new ByteArrayInputStream(mData);
+        }
+
+        @Override
+        public String getFilePath() {
+            return null;
+        }
+
+        @Override
+        public boolean exists() {
+            return true;
+        }
+
+        @Override
+        public long length() {
+            return mData.length;
+        }
+
+        @Override
+        public long lastModified() {
+            return mModified;
+        }
+
+        @Override
+        public String getName() {
+            return mName;
+        }
+    }
+}
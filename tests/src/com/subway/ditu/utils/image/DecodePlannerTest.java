@@ -0,0 +1,208 @@
+/**
+ * DecodePlannerTest.java
+ */
+package com.subway.ditu.utils.image;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+import junit.framework.TestCase;
+
+import com.subway.ditu.utils.MemoryGovernor;
+
+/**
+ * 检查采样率、像素格式和解码区域的选择，尺寸用地图原图的4700x3107
+ */
+public class DecodePlannerTest extends TestCase {
+    private static final int MAP_WIDTH = 4700;
+    private static final int MAP_HEIGHT = 3107;
+
+    // 足够大，不限制采样率
+    private static final long NO_LIMIT = Long.MAX_VALUE / 2;
+
+    private DecodePlanner newPlanner() {
+        return new DecodePlanner(MAP_WIDTH, MAP_HEIGHT).setMemoryBudget(NO_LIMIT);
+    }
+
+    public void testNoTargetDecodesFullSize() {
+        DecodePlanner.Plan plan = newPlanner().plan();
+
+        assertEquals(1, plan.sampleSize);
+        assertEquals(MAP_WIDTH, plan.getWidth());
+        assertEquals(MAP_HEIGHT, plan.getHeight());
+        assertFalse(plan.isPartial());
+    }
+
+    public void testSampleSizeFitsTarget() {
+        // 适应1280x1280时缩放0.27，采样率2解码出的像素仍不少于屏幕像素，4就不够了
+        DecodePlanner.Plan plan = newPlanner().setTargetSize(1280, 1280).plan();
+
+        assertEquals(2, plan.sampleSize);
+        assertEquals(2350, plan.getWidth());
+        assertEquals(1554, plan.getHeight());
+    }
+
+    public void testSampleSizeSmallTarget() {
+        DecodePlanner.Plan plan = newPlanner().setTargetSize(200, 200).plan();
+
+        // 缩放0.0425，采样率16时每个解码像素对应0.68个屏幕像素
+        assertEquals(16, plan.sampleSize);
+    }
+
+    public void testFillUsesLargerScale() {
+        // 铺满时按高度方向的缩放0.41，采样率只能到2
+        DecodePlanner.Plan fit = newPlanner().setTargetSize(1280, 800).plan();
+        DecodePlanner.Plan fill = newPlanner().setTargetSize(1280, 1280).setFill(true).plan();
+
+        assertEquals(2, fit.sampleSize);
+        assertEquals(2, fill.sampleSize);
+        assertEquals(1, newPlanner().setTargetSize(1280, 2560).setFill(true).plan().sampleSize);
+    }
+
+    public void testMaxZoomKeepsDetail() {
+        assertEquals(1, newPlanner().setTargetSize(1280, 1280).setMaxZoom(8.0f).plan().sampleSize);
+        assertEquals(1, newPlanner().setTargetSize(1280, 1280).setMaxZoom(2.0f).plan().sampleSize);
+        // 小于1时按1处理
+        assertEquals(2, newPlanner().setTargetSize(1280, 1280).setMaxZoom(0.5f).plan().sampleSize);
+    }
+
+    public void testMemoryBudgetRaisesSampleSize() {
+        // RGB_565整图29MB，8MB的预算需要采样率2(7.3MB)
+        DecodePlanner.Plan plan = new DecodePlanner(MAP_WIDTH, MAP_HEIGHT).setOpaque(true)
+                .setMemoryBudget(8L * 1024 * 1024).plan();
+
+        assertEquals(2, plan.sampleSize);
+        assertTrue(plan.getByteCount() <= 8L * 1024 * 1024);
+
+        // ARGB_8888需要4倍采样
+        plan = new DecodePlanner(MAP_WIDTH, MAP_HEIGHT).setOpaque(false).setMemoryBudget(8L * 1024 * 1024).plan();
+        assertEquals(4, plan.sampleSize);
+    }
+
+    public void testMemoryBudgetAfterTarget() {
+        // 显示需要采样率1，预算不够时继续加大
+        DecodePlanner.Plan plan = new DecodePlanner(MAP_WIDTH, MAP_HEIGHT).setTargetSize(1280, 1280)
+                .setMaxZoom(8.0f).setOpaque(true).setMemoryBudget(2L * 1024 * 1024).plan();
+
+        assertEquals(4, plan.sampleSize);
+        assertTrue(plan.getByteCount() <= 2L * 1024 * 1024);
+    }
+
+    public void testOpaqueConfig() {
+        DecodePlanner.Plan opaque = newPlanner().setOpaque(true).setDither(true).plan();
+        assertEquals(Bitmap.Config.RGB_565, opaque.config);
+        assertTrue(opaque.dither);
+
+        // 只有RGB_565才抖动
+        DecodePlanner.Plan alpha = newPlanner().setOpaque(false).setDither(true).plan();
+        assertEquals(Bitmap.Config.ARGB_8888, alpha.config);
+        assertFalse(alpha.dither);
+
+        DecodePlanner.Plan config = newPlanner().setConfig(Bitmap.Config.ARGB_4444).setConfig(null).plan();
+        assertEquals(Bitmap.Config.ARGB_4444, config.config);
+    }
+
+    public void testByteCount() {
+        DecodePlanner.Plan plan = new DecodePlanner(100, 50).setMemoryBudget(NO_LIMIT).setOpaque(true).plan();
+        assertEquals(100L * 50 * 2, plan.getByteCount());
+
+        plan.downgrade();
+        assertEquals(2, plan.sampleSize);
+        assertEquals(50L * 25 * 2, plan.getByteCount());
+    }
+
+    public void testRegion() {
+        DecodePlanner.Plan plan = newPlanner().setRegion(new Rect(1000, 1000, 2001, 1500)).plan();
+
+        assertTrue(plan.isPartial());
+        assertEquals(new Rect(1000, 1000, 2001, 1500), plan.region);
+        assertEquals(1001, plan.getWidth());
+        assertEquals(500, plan.getHeight());
+
+        // 采样后向上取整，与BitmapRegionDecoder的结果一致
+        plan.downgrade();
+        assertEquals(501, plan.getWidth());
+        assertEquals(250, plan.getHeight());
+    }
+
+    public void testRegionClippedToImage() {
+        DecodePlanner.Plan plan = newPlanner().setRegion(new Rect(4000, -100, 6000, 1000)).plan();
+
+        assertEquals(new Rect(4000, 0, MAP_WIDTH, 1000), plan.region);
+        assertTrue(plan.isPartial());
+
+        // 整张图作为区域时不算部分解码
+        assertFalse(newPlanner().setRegion(new Rect(0, 0, MAP_WIDTH, MAP_HEIGHT)).plan().isPartial());
+    }
+
+    public void testRegionTargetUsesRegionSize() {
+        // 1175x777的区域适应1280x1280，不需要采样
+        DecodePlanner.Plan plan = newPlanner().setRegion(new Rect(0, 0, 1175, 777)).setTargetSize(1280, 1280)
+                .plan();
+        assertEquals(1, plan.sampleSize);
+    }
+
+    public void testRetryLadder() {
+        MemoryGovernor governor = MemoryGovernor.getInstance();
+        DecodePlanner.Plan plan = newPlanner().setTargetSize(1280, 1280).setRegionFallback(true).plan();
+        assertEquals(2, plan.initialSampleSize);
+
+        // 先换格式，再逐次加大采样率
+        assertTrue(governor.nextRetry(plan, 1, true));
+        assertEquals(Bitmap.Config.RGB_565, plan.config);
+        assertEquals(2, plan.sampleSize);
+        for (int attempt = 2; attempt <= 4; attempt++) {
+            assertTrue(governor.nextRetry(plan, attempt, true));
+        }
+        assertEquals(16, plan.sampleSize);
+        assertFalse(plan.isPartial());
+        long lastBytes = plan.getByteCount();
+
+        // 最后只解码中心区域，恢复最初的采样率，字节数与采样率再加倍时相同
+        assertTrue(governor.nextRetry(plan, 5, true));
+        assertTrue(plan.isPartial());
+        assertEquals(2, plan.sampleSize);
+        assertEquals(MAP_WIDTH / 16, plan.region.width());
+        assertEquals(MAP_HEIGHT / 16, plan.region.height());
+        assertEquals(MAP_WIDTH / 2, plan.region.centerX(), 1);
+        assertEquals(MAP_HEIGHT / 2, plan.region.centerY(), 1);
+        assertTrue(plan.getByteCount() <= lastBytes / 4);
+
+        assertFalse(governor.nextRetry(plan, 6, true));
+    }
+
+    public void testRetryWithoutRegionFallback() {
+        MemoryGovernor governor = MemoryGovernor.getInstance();
+        DecodePlanner.Plan plan = newPlanner().setOpaque(false).plan();
+
+        assertTrue(governor.nextRetry(plan, 1, false));
+        assertEquals(Bitmap.Config.ARGB_4444, plan.config);
+        assertTrue(plan.dither);
+        for (int attempt = 2; attempt <= 4; attempt++) {
+            assertTrue(governor.nextRetry(plan, attempt, false));
+        }
+        assertFalse(governor.nextRetry(plan, 5, false));
+        assertFalse(plan.isPartial());
+    }
+
+    public void testInvalid() {
+        assertNull(new DecodePlanner(0, 100).setMemoryBudget(NO_LIMIT).plan());
+        assertNull(new DecodePlanner(100, -1).setMemoryBudget(NO_LIMIT).plan());
+        assertNull(newPlanner().setRegion(new Rect(5000, 0, 6000, 100)).plan());
+    }
+
+    public void testIsOpaque() {
+        assertTrue(DecodePlanner.isOpaque(new ImageHeaderParser.ImageHeader(ImageHeaderParser.MIME_JPEG, 1, 1,
+                false)));
+        assertFalse(DecodePlanner.isOpaque(new ImageHeaderParser.ImageHeader(ImageHeaderParser.MIME_PNG, 1, 1,
+                true)));
+        assertFalse(DecodePlanner.isOpaque(null));
+    }
+
+    public void testBytesPerPixel() {
+        assertEquals(4, DecodePlanner.getBytesPerPixel(Bitmap.Config.ARGB_8888));
+        assertEquals(2, DecodePlanner.getBytesPerPixel(Bitmap.Config.RGB_565));
+        assertEquals(2, DecodePlanner.getBytesPerPixel(Bitmap.Config.ARGB_4444));
+        assertEquals(1, DecodePlanner.getBytesPerPixel(Bitmap.Config.ALPHA_8));
+    }
+}
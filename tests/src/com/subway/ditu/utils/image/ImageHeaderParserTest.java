@@ -0,0 +1,209 @@
+/**
+ * ImageHeaderParserTest.java
+ */
+package com.subway.ditu.utils.image;
+
+import java.io.ByteArrayOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * 用手工拼出的文件头检查ImageHeaderParser，只依赖java.io，可以在普通JVM上运行
+ */
+public class ImageHeaderParserTest extends TestCase {
+
+    public void testJpegSkipsLargeApp1() {
+        Bytes b = new Bytes();
+        b.bytes(0xFF, 0xD8);
+        // 接近段长度上限的APP1(EXIF)，SOF在它后面
+        int app1Length = 0xFFF0;
+        b.bytes(0xFF, 0xE1).shortBE(app1Length).zeros(app1Length - 2);
+        b.bytes(0xFF, 0xDB).shortBE(4).zeros(2);
+        b.bytes(0xFF, 0xC0).shortBE(17).bytes(8).shortBE(3107).shortBE(4700).zeros(10);
+        b.bytes(0xFF, 0xDA);
+
+        ImageHeaderParser.ImageHeader header = b.parse();
+        assertHeader(header, ImageHeaderParser.MIME_JPEG, 4700, 3107, false);
+    }
+
+    public void testJpegWithoutSof() {
+        Bytes b = new Bytes();
+        b.bytes(0xFF, 0xD8);
+        b.bytes(0xFF, 0xE0).shortBE(16).zeros(14);
+        b.bytes(0xFF, 0xDA);
+
+        assertNull(b.parse());
+    }
+
+    public void testPngOpaque() {
+        Bytes b = png(2); // RGB
+        b.chunk("IDAT", 10);
+
+        ImageHeaderParser.ImageHeader header = b.parse();
+        assertHeader(header, ImageHeaderParser.MIME_PNG, 62, 48, false);
+    }
+
+    public void testPngWithAlphaChannel() {
+        Bytes b = png(6); // RGBA
+        b.chunk("IDAT", 10);
+
+        ImageHeaderParser.ImageHeader header = b.parse();
+        assertHeader(header, ImageHeaderParser.MIME_PNG, 62, 48, true);
+    }
+
+    public void testPngWithTrns() {
+        Bytes b = png(3); // 调色板
+        b.chunk("PLTE", 3 * 4);
+        b.chunk("tRNS", 4);
+        b.chunk("IDAT", 10);
+
+        ImageHeaderParser.ImageHeader header = b.parse();
+        assertHeader(header, ImageHeaderParser.MIME_PNG, 62, 48, true);
+    }
+
+    public void testPngTrnsAfterIdatIgnored() {
+        Bytes b = png(3);
+        b.chunk("PLTE", 3 * 4);
+        b.chunk("IDAT", 10);
+        b.chunk("tRNS", 4);
+
+        ImageHeaderParser.ImageHeader header = b.parse();
+        assertHeader(header, ImageHeaderParser.MIME_PNG, 62, 48, false);
+    }
+
+    public void testWebpLossy() {
+        Bytes b = webp("VP8 ", 10);
+        b.zeros(3).bytes(0x9D, 0x01, 0x2A);
+        // 高两位是缩放，不属于宽高
+        b.shortLE(0xC000 | 640).shortLE(0x4000 | 480);
+
+        ImageHeaderParser.ImageHeader header = b.parse();
+        assertHeader(header, ImageHeaderParser.MIME_WEBP, 640, 480, false);
+    }
+
+    public void testWebpLossless() {
+        int bits = (640 - 1) | ((480 - 1) << 14) | (1 << 28);
+        Bytes b = webp("VP8L", 5);
+        b.bytes(0x2F).intLE(bits);
+
+        ImageHeaderParser.ImageHeader header = b.parse();
+        assertHeader(header, ImageHeaderParser.MIME_WEBP, 640, 480, true);
+    }
+
+    public void testWebpLosslessOpaque() {
+        int bits = (640 - 1) | ((480 - 1) << 14);
+        Bytes b = webp("VP8L", 5);
+        b.bytes(0x2F).intLE(bits);
+
+        ImageHeaderParser.ImageHeader header = b.parse();
+        assertHeader(header, ImageHeaderParser.MIME_WEBP, 640, 480, false);
+    }
+
+    public void testWebpExtended() {
+        Bytes b = webp("VP8X", 10);
+        b.bytes(0x10).zeros(3).int24LE(4700 - 1).int24LE(3107 - 1);
+
+        ImageHeaderParser.ImageHeader header = b.parse();
+        assertHeader(header, ImageHeaderParser.MIME_WEBP, 4700, 3107, true);
+    }
+
+    public void testWebpExtendedOpaque() {
+        Bytes b = webp("VP8X", 10);
+        b.bytes(0x00).zeros(3).int24LE(4700 - 1).int24LE(3107 - 1);
+
+        ImageHeaderParser.ImageHeader header = b.parse();
+        assertHeader(header, ImageHeaderParser.MIME_WEBP, 4700, 3107, false);
+    }
+
+    public void testTruncatedAndUnknown() {
+        Bytes b = png(2);
+        byte[] data = b.toByteArray();
+        assertNull(ImageHeaderParser.parse(data, 0, 20));
+        assertNull(ImageHeaderParser.parse(new byte[] { 'B', 'M', 0, 0 }, 0, 4));
+        assertNull(ImageHeaderParser.parse(null, 0, 0));
+    }
+
+    /**
+     * 签名和62x48的IHDR
+     */
+    private static Bytes png(int colorType) {
+        Bytes b = new Bytes();
+        b.bytes(0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A);
+        b.intBE(13).ascii("IHDR").intBE(62).intBE(48).bytes(8, colorType, 0, 0, 0).zeros(4);
+        return b;
+    }
+
+    /**
+     * RIFF头和第一个块的类型、长度
+     */
+    private static Bytes webp(String chunk, int chunkSize) {
+        Bytes b = new Bytes();
+        b.ascii("RIFF").intLE(4 + 8 + chunkSize).ascii("WEBP");
+        b.ascii(chunk).intLE(chunkSize);
+        return b;
+    }
+
+    private static void assertHeader(ImageHeaderParser.ImageHeader header, String mimeType, int width, int height,
+            boolean hasAlpha) {
+        assertNotNull(header);
+        assertEquals(mimeType, header.mimeType);
+        assertEquals(width, header.width);
+        assertEquals(height, header.height);
+        assertEquals(hasAlpha, header.hasAlpha);
+    }
+
+    private static class Bytes extends ByteArrayOutputStream {
+
+        Bytes bytes(int... values) {
+            for (int value : values) {
+                write(value);
+            }
+            return this;
+        }
+
+        Bytes zeros(int count) {
+            for (int i = 0; i < count; i++) {
+                write(0);
+            }
+            return this;
+        }
+
+        Bytes ascii(String s) {
+            for (int i = 0; i < s.length(); i++) {
+                write(s.charAt(i));
+            }
+            return this;
+        }
+
+        Bytes shortBE(int value) {
+            return bytes(value >> 8, value);
+        }
+
+        Bytes shortLE(int value) {
+            return bytes(value, value >> 8);
+        }
+
+        Bytes int24LE(int value) {
+            return bytes(value, value >> 8, value >> 16);
+        }
+
+        Bytes intBE(int value) {
+            return bytes(value >> 24, value >> 16, value >> 8, value);
+        }
+
+        Bytes intLE(int value) {
+            return bytes(value, value >> 8, value >> 16, value >> 24);
+        }
+
+        /**
+         * 长度、类型、内容和CRC，CRC不检查，写0
+         */
+        Bytes chunk(String type, int length) {
+            return intBE(length).ascii(type).zeros(length + 4);
+        }
+
+        ImageHeaderParser.ImageHeader parse() {
+            return ImageHeaderParser.parse(buf, 0, count);
+        }
+    }
+}
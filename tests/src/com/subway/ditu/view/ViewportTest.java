@@ -0,0 +1,194 @@
+/**
+ * ViewportTest.java
+ */
+package com.subway.ditu.view;
+
+import android.graphics.PointF;
+import android.graphics.RectF;
+
+import junit.framework.TestCase;
+
+/**
+ * 检查坐标转换、缩放平移的叠加、位置限制和插值。图片1000x500，View 500x500。
+ */
+public class ViewportTest extends TestCase {
+    private static final float DELTA = 0.001f;
+
+    private Viewport mViewport;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mViewport = new Viewport();
+        mViewport.setImageSize(1000, 500);
+        mViewport.setViewSize(500, 500);
+    }
+
+    public void testFitAndFillScale() {
+        assertEquals(0.5f, mViewport.getFitScale(), DELTA);
+        assertEquals(1.0f, mViewport.getFillScale(), DELTA);
+
+        Viewport empty = new Viewport();
+        assertTrue(empty.isEmpty());
+        assertEquals(1.0f, empty.getFitScale(), DELTA);
+    }
+
+    public void testCenter() {
+        mViewport.center(0.5f);
+
+        assertEquals(0, mViewport.getTranslateX(), DELTA);
+        assertEquals(125, mViewport.getTranslateY(), DELTA);
+        assertTrue(mViewport.isFitCenter());
+        assertFalse(mViewport.isOverflowing());
+    }
+
+    public void testMappingRoundTrip() {
+        mViewport.set(2.0f, -300, 40);
+
+        assertEquals(100, mViewport.imageToViewX(200), DELTA);
+        assertEquals(240, mViewport.imageToViewY(100), DELTA);
+        assertEquals(200, mViewport.viewToImageX(100), DELTA);
+        assertEquals(100, mViewport.viewToImageY(240), DELTA);
+
+        PointF point = new PointF();
+        mViewport.viewToImage(100, 240, point);
+        assertEquals(200, point.x, DELTA);
+        assertEquals(100, point.y, DELTA);
+    }
+
+    public void testImageRect() {
+        mViewport.set(2.0f, -300, 40);
+        RectF rect = new RectF();
+
+        mViewport.getImageRect(rect);
+        assertRect(rect, -300, 40, 1700, 1040);
+
+        // 可见区域不超出原图
+        mViewport.getVisibleImageRect(rect);
+        assertRect(rect, 150, 0, 400, 230);
+    }
+
+    public void testPostScaleKeepsFocus() {
+        mViewport.center(0.5f);
+        float imageX = mViewport.viewToImageX(100);
+        float imageY = mViewport.viewToImageY(300);
+
+        mViewport.postScale(3.0f, 100, 300);
+
+        assertEquals(1.5f, mViewport.getScale(), DELTA);
+        assertEquals(100, mViewport.imageToViewX(imageX), DELTA);
+        assertEquals(300, mViewport.imageToViewY(imageY), DELTA);
+    }
+
+    public void testPostTranslate() {
+        mViewport.set(1.0f, 10, 20);
+        mViewport.postTranslate(-5, 7);
+
+        assertEquals(5, mViewport.getTranslateX(), DELTA);
+        assertEquals(27, mViewport.getTranslateY(), DELTA);
+    }
+
+    public void testClampScale() {
+        mViewport.set(0.1f, 0, 0);
+        mViewport.clampScale(0.5f, 4.0f, 250, 250);
+        assertEquals(0.5f, mViewport.getScale(), DELTA);
+
+        mViewport.set(10.0f, 0, 0);
+        mViewport.clampScale(0.5f, 4.0f, 0, 0);
+        assertEquals(4.0f, mViewport.getScale(), DELTA);
+        // 以(0, 0)为中心，位置不变
+        assertEquals(0, mViewport.getTranslateX(), DELTA);
+
+        mViewport.set(2.0f, -7, -9);
+        mViewport.clampScale(0.5f, 4.0f, 0, 0);
+        assertEquals(2.0f, mViewport.getScale(), DELTA);
+        assertEquals(-7, mViewport.getTranslateX(), DELTA);
+    }
+
+    public void testClampPosition() {
+        // 宽1000超出View，不能露出左边的空白；高500正好填满View
+        mViewport.set(1.0f, 50, -80);
+        mViewport.clampPosition();
+        assertEquals(0, mViewport.getTranslateX(), DELTA);
+        assertEquals(0, mViewport.getTranslateY(), DELTA);
+
+        // 不能露出右边的空白
+        mViewport.set(1.0f, -800, 0);
+        mViewport.clampPosition();
+        assertEquals(-500, mViewport.getTranslateX(), DELTA);
+
+        // 比View小的方向居中
+        mViewport.set(0.5f, -100, 400);
+        mViewport.clampPosition();
+        assertEquals(0, mViewport.getTranslateX(), DELTA);
+        assertEquals(125, mViewport.getTranslateY(), DELTA);
+    }
+
+    public void testOverflowing() {
+        mViewport.set(1.0f, -200, 0);
+        assertTrue(mViewport.isOverflowing());
+        assertFalse(mViewport.isFitCenter());
+    }
+
+    public void testInterpolate() {
+        Viewport from = new Viewport();
+        from.set(1.0f, 0, 100);
+        Viewport to = new Viewport();
+        to.set(3.0f, -200, 0);
+
+        mViewport.interpolate(from, to, 0.25f);
+        assertEquals(1.5f, mViewport.getScale(), DELTA);
+        assertEquals(-50, mViewport.getTranslateX(), DELTA);
+        assertEquals(75, mViewport.getTranslateY(), DELTA);
+
+        mViewport.interpolate(from, to, 1.0f);
+        assertTrue(mViewport.isSameAs(to));
+        mViewport.interpolate(from, to, 0);
+        assertTrue(mViewport.isSameAs(from));
+    }
+
+    public void testSameAsTolerance() {
+        Viewport other = new Viewport();
+        mViewport.set(2.0f, 10, 10);
+
+        other.set(2.01f, 10.5f, 9.5f);
+        assertTrue(mViewport.isSameAs(other));
+
+        other.set(2.1f, 10, 10);
+        assertFalse(mViewport.isSameAs(other));
+
+        other.set(2.0f, 11.5f, 10);
+        assertFalse(mViewport.isSameAs(other));
+    }
+
+    public void testResizeImageKeepsRect() {
+        mViewport.set(0.5f, 0, 125);
+        RectF before = new RectF();
+        mViewport.getImageRect(before);
+
+        // 换成一半分辨率的同一张图
+        mViewport.resizeImage(500, 250);
+
+        RectF after = new RectF();
+        mViewport.getImageRect(after);
+        assertEquals(1.0f, mViewport.getScale(), DELTA);
+        assertRect(after, before.left, before.top, before.right, before.bottom);
+    }
+
+    public void testSetCopiesEverything() {
+        mViewport.set(2.0f, -3, -4);
+        Viewport copy = new Viewport();
+        copy.set(mViewport);
+
+        assertEquals(1000, copy.getImageWidth());
+        assertEquals(500, copy.getViewHeight());
+        assertTrue(copy.isSameAs(mViewport));
+    }
+
+    private static void assertRect(RectF rect, float left, float top, float right, float bottom) {
+        assertEquals("left", left, rect.left, DELTA);
+        assertEquals("top", top, rect.top, DELTA);
+        assertEquals("right", right, rect.right, DELTA);
+        assertEquals("bottom", bottom, rect.bottom, DELTA);
+    }
+}